@@ -37,6 +37,35 @@ import java.util.*;
  */
 public class MockAgentBuildRunner implements AgentBuildRunner, AgentBuildRunnerInfo {
 
+    private final MockBuildScheduler scheduler;
+    private final MockChrootPool chrootPool;
+    private final MockBuildCache buildCache;
+    private final MockTmpfsBudget tmpfsBudget;
+    private final MockMetrics metrics;
+    private final ArtifactsWatcher artifactsWatcher;
+
+    /**
+     * @param scheduler        the agent-wide scheduler through which all mock builds are run.
+     * @param chrootPool       the agent-wide pool of pre-initialized chroot instances.
+     * @param buildCache       the agent-wide cache of build results.
+     * @param tmpfsBudget      the agent-wide memory budget for chroots on tmpfs.
+     * @param metrics          the agent-wide metrics of mock builds.
+     * @param artifactsWatcher used to publish each chroot's artifacts as soon as it has finished.
+     */
+    public MockAgentBuildRunner(@NotNull MockBuildScheduler scheduler,
+                                @NotNull MockChrootPool chrootPool,
+                                @NotNull MockBuildCache buildCache,
+                                @NotNull MockTmpfsBudget tmpfsBudget,
+                                @NotNull MockMetrics metrics,
+                                @NotNull ArtifactsWatcher artifactsWatcher) {
+        this.scheduler = scheduler;
+        this.chrootPool = chrootPool;
+        this.buildCache = buildCache;
+        this.tmpfsBudget = tmpfsBudget;
+        this.metrics = metrics;
+        this.artifactsWatcher = artifactsWatcher;
+    }
+
     /**
      * Create the BuildProcess extension that will be actually run as this build stage.
      *
@@ -78,9 +107,15 @@ public class MockAgentBuildRunner implements AgentBuildRunner, AgentBuildRunnerI
                 runnerParameters.get(MockConstants.SOURCE_RPMS));
         logger.message("Building packages: " + Arrays.toString(srpms.toArray()));
 
+        // Results are staged outside the checkout, where the build's artifact paths don't pick them up a second time at
+        // the end of the build: each chroot's files are published from here as soon as they are ready
+        String artifactsDirectory = new File(build.getBuildTempDirectory(), MockConstants.ARTIFACTS_STAGING_DIR)
+                .getAbsolutePath();
+
         // Return custom build process
-        return new MockBuildProcess(chrootNames, srpms, runnerParameters, build.getArtifactsPaths(),
-                context.getBuildParameters().getEnvironmentVariables(), logger);
+        return new MockBuildProcess(chrootNames, srpms, runnerParameters, artifactsDirectory,
+                context.getBuildParameters().getEnvironmentVariables(), build.getBuildTempDirectory(), scheduler,
+                chrootPool, buildCache, tmpfsBudget, metrics, artifactsWatcher, logger);
     }
 
     /**
@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.agent;
+
+import ch.cern.dss.teamcity.common.MockConstants;
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Agent-wide, content-addressed cache of mock build results. Entries are keyed by a hash of the source RPMs, the
+ * resolved chroot config and the RPM macros, so a hit means the exact same build has already been done on this agent.
+ * <p/>
+ * The cache is limited to {@link MockConstants#CACHE_MAX_SIZE_MB}; the least recently used entries are evicted first.
+ * It is disabled unless that limit is set.
+ */
+public class MockBuildCache extends AgentLifeCycleAdapter {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final Map<String, Integer> entriesInUse = new HashMap<String, Integer>();
+    private File cacheDirectory;
+    private long maxSize = 0;
+
+    /**
+     * @param dispatcher used to register for agent lifecycle events.
+     */
+    public MockBuildCache(@NotNull EventDispatcher<AgentLifeCycleListener> dispatcher) {
+        dispatcher.addListener(this);
+    }
+
+    /**
+     * Read the cache settings from the agent configuration.
+     *
+     * @param agent the agent that has just been initialized.
+     */
+    @Override
+    public synchronized void agentInitialized(@NotNull BuildAgent agent) {
+        Map<String, String> parameters = agent.getConfiguration().getConfigurationParameters();
+
+        String size = parameters.get(MockConstants.CACHE_MAX_SIZE_MB);
+        if (size != null && size.trim().length() > 0) {
+            try {
+                maxSize = Math.max(0, Long.parseLong(size.trim())) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                Loggers.AGENT.warn("Invalid value for " + MockConstants.CACHE_MAX_SIZE_MB + ": " + size
+                        + ", build cache disabled");
+            }
+        }
+
+        String directory = parameters.get(MockConstants.CACHE_DIR);
+        cacheDirectory = (directory != null && directory.trim().length() > 0)
+                ? new File(directory.trim())
+                : agent.getConfiguration().getCacheDirectory(MockConstants.TYPE);
+
+        Loggers.AGENT.info("Mock build cache: " + (isEnabled()
+                ? cacheDirectory + ", " + maxSize / (1024 * 1024) + " MB" : "disabled"));
+    }
+
+    /**
+     * @return true if the cache has been configured with a size limit.
+     */
+    public synchronized boolean isEnabled() {
+        return maxSize > 0 && cacheDirectory != null;
+    }
+
+    /**
+     * Look up a cache entry. A hit marks the entry as in use, so that it isn't evicted while being published; it must
+     * then be handed back with {@link #release(String)}.
+     *
+     * @param key the cache key.
+     *
+     * @return the directory holding the cached RPMs and logs, or null on a miss.
+     */
+    @Nullable
+    public synchronized File lookup(@NotNull String key) {
+        File entry = new File(cacheDirectory, key);
+        if (!entry.isDirectory()) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        entry.setLastModified(System.currentTimeMillis());
+
+        Integer users = entriesInUse.get(key);
+        entriesInUse.put(key, users == null ? 1 : users + 1);
+        return entry;
+    }
+
+    /**
+     * Release a cache entry obtained from {@link #lookup(String)}.
+     *
+     * @param key the cache key.
+     */
+    public synchronized void release(@NotNull String key) {
+        Integer users = entriesInUse.get(key);
+        if (users == null || users <= 1) {
+            entriesInUse.remove(key);
+        } else {
+            entriesInUse.put(key, users - 1);
+        }
+    }
+
+    /**
+     * Store the RPMs and logs from a successful build, then evict old entries if the cache has grown too big. The
+     * entry is copied in under a temporary name and renamed, so concurrent lookups never see a partial entry.
+     *
+     * @param key             the cache key.
+     * @param resultDirectory the mock result directory of the build.
+     *
+     * @throws IOException
+     */
+    public void store(@NotNull String key, @NotNull File resultDirectory) throws IOException {
+        File entry = new File(cacheDirectory, key);
+        if (entry.exists()) {
+            return;
+        }
+
+        File temporary = new File(cacheDirectory, key + ".tmp-" + UUID.randomUUID());
+        temporary.mkdirs();
+
+        File[] files = resultDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(".rpm") || file.getName().endsWith(".log");
+            }
+        });
+        try {
+            for (File file : files) {
+                FileUtils.copyFile(file, new File(temporary, file.getName()));
+            }
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(temporary);
+            throw e;
+        }
+
+        synchronized (this) {
+            if (entry.exists() || !temporary.renameTo(entry)) {
+                FileUtils.deleteQuietly(temporary);
+            }
+            evict();
+        }
+    }
+
+    /**
+     * @return the number of cache hits since the agent started.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of cache misses since the agent started.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Delete the least recently used entries until the cache fits within its size limit. Entries in use are skipped.
+     */
+    private void evict() {
+        File[] entries = cacheDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() && !file.getName().contains(".tmp-");
+            }
+        });
+        if (entries == null) {
+            return;
+        }
+
+        long totalSize = 0;
+        final Map<File, Long> lastUsed = new HashMap<File, Long>();
+        for (File entry : entries) {
+            totalSize += FileUtils.sizeOfDirectory(entry);
+            lastUsed.put(entry, entry.lastModified());
+        }
+
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                return lastUsed.get(first).compareTo(lastUsed.get(second));
+            }
+        });
+
+        for (File entry : entries) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            if (entriesInUse.containsKey(entry.getName())) {
+                continue;
+            }
+
+            long size = FileUtils.sizeOfDirectory(entry);
+            FileUtils.deleteQuietly(entry);
+            totalSize -= size;
+            Loggers.AGENT.info("Mock build cache: evicted " + entry.getName());
+        }
+    }
+}
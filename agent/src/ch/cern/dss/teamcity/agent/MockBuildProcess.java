@@ -21,19 +21,27 @@
 package ch.cern.dss.teamcity.agent;
 
 import ch.cern.dss.teamcity.common.MockConstants;
+import ch.cern.dss.teamcity.common.RpmMacroSet;
 import jetbrains.buildServer.RunBuildException;
+import jetbrains.buildServer.agent.ArtifactsWatcher;
 import jetbrains.buildServer.agent.BuildFinishedStatus;
 import jetbrains.buildServer.agent.BuildProcess;
 import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.util.FileUtil;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
 import java.util.concurrent.*;
 
 /**
- * Custom build process implementation.
+ * Custom build process implementation. Each source RPM is built in each chroot as a separate task. Tasks are submitted
+ * to the agent-wide scheduler as soon as the source RPMs they build-require have been built in the same chroot, so
+ * independent packages build in parallel.
+ * <p/>
+ * In chain mode there is a single task per chroot, which builds all source RPMs in dependency order in one mock
+ * session.
  */
 public class MockBuildProcess implements BuildProcess {
 
@@ -42,10 +50,21 @@ public class MockBuildProcess implements BuildProcess {
     private final Map<String, String> runnerParameters;
     private final Map<String, String> environmentVariables;
     private final String artifactPaths;
+    private final File buildTempDirectory;
+    private final MockBuildScheduler scheduler;
+    private final MockChrootPool chrootPool;
+    private final MockBuildCache buildCache;
+    private final MockTmpfsBudget tmpfsBudget;
+    private final MockMetrics metrics;
+    private final ArtifactsWatcher artifactsWatcher;
     private final BuildProgressLogger logger;
-    private Map<String, Future<BuildFinishedStatus>> futures;
-    private boolean isInterrupted = false;
-    private boolean isFinished = false;
+    private final List<MockTask> tasks;
+    private final Map<Future<BuildFinishedStatus>, MockTask> futures;
+    private final BlockingQueue<Future<BuildFinishedStatus>> completed;
+    private final Set<String> writtenManifests = new HashSet<String>();
+    private volatile boolean isInterrupted = false;
+    private volatile boolean isFinished = false;
+    private boolean isCancelling = false;
 
     /**
      *
@@ -54,6 +73,13 @@ public class MockBuildProcess implements BuildProcess {
      * @param runnerParameters
      * @param artifactPaths
      * @param environmentVariables
+     * @param buildTempDirectory
+     * @param scheduler
+     * @param chrootPool
+     * @param buildCache
+     * @param tmpfsBudget
+     * @param metrics
+     * @param artifactsWatcher
      * @param logger
      */
     public MockBuildProcess(@NotNull List<String> chrootNames,
@@ -61,33 +87,164 @@ public class MockBuildProcess implements BuildProcess {
                             @NotNull Map<String, String> runnerParameters,
                             @NotNull String artifactPaths,
                             @NotNull Map<String, String> environmentVariables,
+                            @NotNull File buildTempDirectory,
+                            @NotNull MockBuildScheduler scheduler,
+                            @NotNull MockChrootPool chrootPool,
+                            @NotNull MockBuildCache buildCache,
+                            @NotNull MockTmpfsBudget tmpfsBudget,
+                            @NotNull MockMetrics metrics,
+                            @NotNull ArtifactsWatcher artifactsWatcher,
                             @NotNull BuildProgressLogger logger) {
         this.chrootNames = chrootNames;
         this.srpms = srpms;
         this.runnerParameters = runnerParameters;
         this.artifactPaths = artifactPaths;
         this.environmentVariables = environmentVariables;
+        this.buildTempDirectory = buildTempDirectory;
+        this.scheduler = scheduler;
+        this.chrootPool = chrootPool;
+        this.buildCache = buildCache;
+        this.tmpfsBudget = tmpfsBudget;
+        this.metrics = metrics;
+        this.artifactsWatcher = artifactsWatcher;
         this.logger = logger;
-        this.futures = new HashMap<String, Future<BuildFinishedStatus>>();
+        this.tasks = new ArrayList<MockTask>();
+        this.futures = new ConcurrentHashMap<Future<BuildFinishedStatus>, MockTask>();
+        this.completed = new LinkedBlockingQueue<Future<BuildFinishedStatus>>();
     }
 
     /**
+     * Create the build tasks, work out the build order of the source RPMs, and submit the tasks which don't depend on
+     * anything else.
      *
      * @throws RunBuildException
      */
     @Override
     public void start() throws RunBuildException {
-        ExecutorService executor = Executors.newFixedThreadPool(MockConstants.MAX_CONCURRENT_MOCK_BUILDS);
+        SrpmDependencyGraph graph = new SrpmDependencyGraph(srpms, logger);
+        boolean chainMode = MockConstants.BUILD_MODE_CHAIN.equals(runnerParameters.get(MockConstants.BUILD_MODE));
+
+        // Environment variable can override runner params
+        List<RpmMacroSet> macroSets;
+        try {
+            macroSets = RpmMacroSet.parse(environmentVariables.containsKey("RPMDEFS")
+                    ? environmentVariables.get("RPMDEFS")
+                    : runnerParameters.get(MockConstants.RPM_MACROS));
+        } catch (IllegalArgumentException e) {
+            throw new RunBuildException(e.getMessage());
+        }
+        if (macroSets.size() > 1 || macroSets.get(0).getName() != null) {
+            logger.message("Building with RPM macro sets: " + macroSets);
+        }
+        if (chainMode) {
+            logger.message("Chain build order: " + graph.getBuildOrder());
+        }
 
         for (String chrootName : chrootNames) {
-            Callable<BuildFinishedStatus> thread = new MockCallable(
-                    new MockContext(chrootName, srpms, runnerParameters, artifactPaths, environmentVariables), logger);
+            for (RpmMacroSet macroSet : macroSets) {
+                if (chainMode) {
+                    MockContext context = new MockContext(chrootName, null, macroSet, graph.getBuildOrder(),
+                            runnerParameters, artifactPaths, environmentVariables, buildTempDirectory);
+                    tasks.add(new MockTask(context, new MockCallable(context, scheduler, chrootPool,
+                            buildCache, tmpfsBudget, metrics, artifactsWatcher, logger)));
+                } else {
+                    createParallelTasks(graph, chrootName, macroSet);
+                }
+            }
+        }
 
-            Future<BuildFinishedStatus> submit = executor.submit(thread);
-            futures.put(chrootName, submit);
+        // All builds in a chroot share its flow in the build log, so they share its limit on log lines
+        Map<String, MockLogThrottle> throttles = new HashMap<String, MockLogThrottle>();
+        for (MockTask task : tasks) {
+            MockLogThrottle throttle = throttles.get(task.context.getChrootName());
+            if (throttle == null) {
+                throttle = new MockLogThrottle(MockConstants.LOG_TAIL_MAX_LINES_PER_SECOND);
+                throttles.put(task.context.getChrootName(), throttle);
+            }
+            task.context.setLogThrottle(throttle);
+        }
+
+        synchronized (this) {
+            for (MockTask task : tasks) {
+                if (task.upstream.isEmpty()) {
+                    submit(task);
+                }
+            }
         }
     }
 
+    /**
+     * Create a task for each source RPM in a chroot and macro set, with dependencies between the tasks.
+     *
+     * @param graph      the build-order dependencies between the source RPMs.
+     * @param chrootName the chroot to build in.
+     * @param macroSet   the RPM macros to build with.
+     */
+    private void createParallelTasks(SrpmDependencyGraph graph, String chrootName, RpmMacroSet macroSet) {
+        Map<String, MockTask> tasksBySrpm = new HashMap<String, MockTask>();
+        for (String srpm : srpms) {
+            String packageName = srpms.size() > 1 ? getPackageName(srpm) : null;
+            MockContext context = new MockContext(chrootName, packageName, macroSet, Collections.singletonList(srpm),
+                    runnerParameters, artifactPaths, environmentVariables, buildTempDirectory);
+
+            MockTask task = new MockTask(context, new MockCallable(context, scheduler, chrootPool,
+                    buildCache, tmpfsBudget, metrics, artifactsWatcher, logger));
+            tasksBySrpm.put(srpm, task);
+            tasks.add(task);
+        }
+
+        // Packages needed by later packages are published to a local repository for them. Packages built with
+        // different macro sets may differ, so each set gets its own.
+        String taskGroup = tasksBySrpm.get(srpms.get(0)).context.getArtifactsDirectoryName();
+        MockLocalRepository repository = graph.hasDependencies()
+                ? new MockLocalRepository(new File(buildTempDirectory, "mock-repo/" + taskGroup)) : null;
+
+        for (String srpm : srpms) {
+            MockTask task = tasksBySrpm.get(srpm);
+            for (String dependency : graph.getDependencies(srpm)) {
+                MockTask upstream = tasksBySrpm.get(dependency);
+                task.upstream.add(upstream);
+                upstream.downstream.add(task);
+                task.context.addUpstream(upstream.context);
+
+                task.context.setBuildRepository(repository);
+                upstream.context.setPublishRepository(repository);
+            }
+
+            if (!task.upstream.isEmpty()) {
+                logger.message("Build order (" + taskGroup + "): " + task.context.getPackageName()
+                        + " after " + task.upstream);
+            }
+        }
+    }
+
+    /**
+     * @return the scheduling priority of this build's chroots, as specified in the runner parameters.
+     */
+    private int getPriority() {
+        String priority = runnerParameters.get(MockConstants.PRIORITY);
+        if (priority == null || priority.trim().length() == 0) {
+            return 0;
+        }
+
+        try {
+            return Integer.parseInt(priority.trim());
+        } catch (NumberFormatException e) {
+            logger.warning("Invalid mock build priority \"" + priority + "\", using default");
+            return 0;
+        }
+    }
+
+    /**
+     * @param srpm the path to a source RPM.
+     *
+     * @return the file name of the source RPM without its extension, e.g. foo-1.0-1.el6.
+     */
+    private String getPackageName(String srpm) {
+        String name = new File(srpm).getName();
+        return name.endsWith(".src.rpm") ? name.substring(0, name.length() - ".src.rpm".length()) : name;
+    }
+
     /**
      *
      * @return
@@ -107,40 +264,237 @@ public class MockBuildProcess implements BuildProcess {
     }
 
     /**
-     *
+     * Stop the build: cancel any queued tasks and kill the mock processes of running ones.
      */
     @Override
     public void interrupt() {
         this.isInterrupted = true;
+        cancelAll("Build interrupted");
     }
 
     /**
+     * Wait for each task to finish, processing the results in the order in which they complete. Tasks whose
+     * dependencies have all been built are submitted as they become ready; tasks depending on a failed one are skipped.
+     * In fail-fast mode, the first failure cancels everything else.
      *
-     * @return
+     * @return the overall status of the build.
      * @throws RunBuildException
      */
     @NotNull
     @Override
     public BuildFinishedStatus waitFor() throws RunBuildException {
-        for (Map.Entry<String, Future<BuildFinishedStatus>> entry : futures.entrySet()) {
+        boolean failFast = Boolean.parseBoolean(runnerParameters.get(MockConstants.FAIL_FAST));
+        BuildFinishedStatus status = BuildFinishedStatus.FINISHED_SUCCESS;
 
-            try {
-                logger.message("Result (" + entry.getKey() + "): " + entry.getValue().get().name());
+        try {
+            while (hasRunningTasks()) {
+                Future<BuildFinishedStatus> future = completed.take();
+                MockTask task = futures.get(future);
+
+                BuildFinishedStatus result = getResult(task, future);
+                if (result == null) {
+                    continue;
+                }
+
+                synchronized (this) {
+                    task.state = TaskState.DONE;
+
+                    if (result == BuildFinishedStatus.FINISHED_SUCCESS) {
+                        for (MockTask downstream : task.downstream) {
+                            if (downstream.isReady() && !isCancelling) {
+                                submit(downstream);
+                            }
+                        }
+                        continue;
+                    }
+
+                    status = BuildFinishedStatus.FINISHED_FAILED;
+                    skipDownstream(task);
+                }
+
+                if (failFast) {
+                    cancelAll("Task " + task + " failed");
+                }
+                writeManifests();
+            }
+        } catch (InterruptedException e) {
+            logger.exception(e);
+            cancelAll("Build interrupted");
+            return BuildFinishedStatus.INTERRUPTED;
+        } finally {
+            writeManifests();
+            this.isFinished = true;
+        }
+
+        return isInterrupted ? BuildFinishedStatus.INTERRUPTED : status;
+    }
+
+    /**
+     * Log the result of a completed task.
+     *
+     * @param task   the task.
+     * @param future the future of the task.
+     *
+     * @return the result of the task, or null if it was cancelled.
+     * @throws InterruptedException
+     */
+    private BuildFinishedStatus getResult(MockTask task, Future<BuildFinishedStatus> future)
+            throws InterruptedException {
+        if (future.isCancelled()) {
+            logger.message("Result (" + task + "): CANCELLED");
+            synchronized (this) {
+                task.state = TaskState.DONE;
+                skipDownstream(task);
+            }
+            return null;
+        }
+
+        BuildFinishedStatus result;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            logger.exception(e);
+            result = BuildFinishedStatus.FINISHED_FAILED;
+        }
+        logger.message("Result (" + task + "): " + result.name());
+        return result;
+    }
 
-                if (entry.getValue().get().equals(BuildFinishedStatus.FINISHED_FAILED)) {
-                    return BuildFinishedStatus.FINISHED_FAILED;
+    /**
+     * Write and publish the manifest of each chroot (and macro set) whose tasks have all finished, listing the RPMs
+     * published by all of them. Each manifest is written only once, so an upload never catches it half-written.
+     */
+    private synchronized void writeManifests() {
+        Map<String, StringBuilder> manifests = new LinkedHashMap<String, StringBuilder>();
+        Set<String> unfinished = new HashSet<String>();
+        for (MockTask task : tasks) {
+            String directoryName = task.context.getArtifactsDirectoryName();
+            if (task.state != TaskState.DONE) {
+                unfinished.add(directoryName);
+            }
+            StringBuilder manifest = manifests.get(directoryName);
+            if (manifest == null) {
+                manifest = new StringBuilder("chroot=" + task.context.getChrootName() + "\n");
+                if (task.context.getMacroSetName() != null) {
+                    manifest.append("macroSet=").append(task.context.getMacroSetName()).append("\n");
                 }
+                manifests.put(directoryName, manifest);
+            }
+            manifest.append(task.context.getManifestEntries());
+        }
+
+        for (Map.Entry<String, StringBuilder> entry : manifests.entrySet()) {
+            if (unfinished.contains(entry.getKey()) || !writtenManifests.add(entry.getKey())) {
+                continue;
+            }
 
-            } catch (InterruptedException e) {
-                logger.exception(e);
-                return BuildFinishedStatus.INTERRUPTED;
-            } catch (ExecutionException e) {
-                logger.exception(e);
-                return BuildFinishedStatus.FINISHED_FAILED;
+            File manifestFile = new File(artifactPaths, entry.getKey() + "/manifest.txt");
+            try {
+                manifestFile.getParentFile().mkdirs();
+                FileUtil.writeFile(manifestFile, entry.getValue().toString(), "UTF-8");
+                artifactsWatcher.addNewArtifactsPath(manifestFile.getAbsolutePath() + " => " + entry.getKey());
+            } catch (IOException e) {
+                logger.warning("Unable to write the manifest of " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return true if any task is still queued or running.
+     */
+    private synchronized boolean hasRunningTasks() {
+        for (MockTask task : tasks) {
+            if (task.state == TaskState.SUBMITTED) {
+                return true;
             }
         }
+        return false;
+    }
+
+    /**
+     * Submit a task to the scheduler. Must be called while holding the lock on this object.
+     *
+     * @param task the task to submit.
+     */
+    private void submit(MockTask task) {
+        task.state = TaskState.SUBMITTED;
+        Future<BuildFinishedStatus> future = scheduler.submit(task.toString(), task.callable, getPriority(), logger,
+                completed);
+        task.future = future;
+        futures.put(future, task);
+    }
 
-        // All threads apparently finished successfully
-        return BuildFinishedStatus.FINISHED_SUCCESS;
+    /**
+     * Skip every task which depends, directly or indirectly, on a task that did not succeed. Must be called while
+     * holding the lock on this object.
+     *
+     * @param task the task that did not succeed.
+     */
+    private void skipDownstream(MockTask task) {
+        for (MockTask downstream : task.downstream) {
+            if (downstream.state == TaskState.PENDING) {
+                logger.message("Result (" + downstream + "): SKIPPED (depends on " + task + ")");
+                downstream.state = TaskState.DONE;
+                skipDownstream(downstream);
+            }
+        }
+    }
+
+    /**
+     * Cancel all tasks which have not yet finished, killing their mock process trees.
+     *
+     * @param reason the reason for cancellation, for the build log.
+     */
+    private synchronized void cancelAll(String reason) {
+        isCancelling = true;
+
+        for (MockTask task : tasks) {
+            if (task.state == TaskState.PENDING) {
+                task.state = TaskState.DONE;
+            } else if (task.state == TaskState.SUBMITTED && !task.future.isDone()) {
+                logger.message(reason + ", cancelling: " + task);
+                task.callable.cancel();
+                task.future.cancel(true);
+            }
+        }
+    }
+
+    private enum TaskState {PENDING, SUBMITTED, DONE}
+
+    /**
+     * A single source RPM built in a single chroot.
+     */
+    private static class MockTask {
+        private final MockContext context;
+        private final MockCallable callable;
+        private final Set<MockTask> upstream = new LinkedHashSet<MockTask>();
+        private final Set<MockTask> downstream = new LinkedHashSet<MockTask>();
+        private TaskState state = TaskState.PENDING;
+        private Future<BuildFinishedStatus> future;
+
+        private MockTask(MockContext context, MockCallable callable) {
+            this.context = context;
+            this.callable = callable;
+        }
+
+        /**
+         * @return true if every task this one depends on has finished.
+         */
+        private boolean isReady() {
+            if (state != TaskState.PENDING) {
+                return false;
+            }
+            for (MockTask task : upstream) {
+                if (task.state != TaskState.DONE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return context.getTaskName();
+        }
     }
 }
@@ -0,0 +1,450 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.agent;
+
+import ch.cern.dss.teamcity.agent.util.SystemResources;
+import ch.cern.dss.teamcity.common.MockConstants;
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Agent-wide scheduler through which every mock build thread (MockCallable) is run. A single instance exists per
+ * agent, so the concurrency limit applies across all builds running on the agent rather than per build.
+ * <p/>
+ * The limit is read from the agent configuration parameter {@link MockConstants#SCHEDULER_MAX_CONCURRENT_BUILDS}. It
+ * may be a fixed number, or "auto" to derive it from the number of cores and the physical memory of the host.
+ * <p/>
+ * A build which has a free slot is still held back while the host is short of memory, of disk space under
+ * {@link MockConstants#MOCK_CHROOT_DIR}, or is overloaded. Builds admitted within the last
+ * {@link MockConstants#ADMISSION_SETTLE_TIME} ms are assumed to be about to use their share of memory, so that several
+ * builds starting together don't all see the same free memory. Memory reserved for tmpfs chroots counts as used as
+ * well, since it is taken as the builds fill their tmpfs rather than up front. The first build is always admitted when nothing else
+ * is running, so a host which never meets the thresholds still makes progress.
+ */
+public class MockBuildScheduler extends AgentLifeCycleAdapter {
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Set<ScheduledMockBuild> scheduled
+            = Collections.newSetFromMap(new ConcurrentHashMap<ScheduledMockBuild, Boolean>());
+    private final MockTmpfsBudget tmpfsBudget;
+    private ThreadPoolExecutor executor;
+    private boolean priorityQueue = false;
+    private int maxConcurrentBuilds = MockConstants.MAX_CONCURRENT_MOCK_BUILDS;
+    private long memoryPerBuild = MockConstants.DEFAULT_MEMORY_PER_BUILD_MB * 1024L * 1024L;
+    private long minFreeMemory = memoryPerBuild;
+    private long minFreeDisk = MockConstants.DEFAULT_MIN_FREE_DISK_MB * 1024L * 1024L;
+    private double maxLoadPerCore = MockConstants.DEFAULT_MAX_LOAD_PER_CORE;
+    private final Object admissionLock = new Object();
+    private final LinkedList<Long> recentAdmissions = new LinkedList<Long>();
+
+    /**
+     * @param dispatcher used to register for agent lifecycle events, so that we can read the agent configuration on
+     *                   startup and shut down cleanly when the agent stops.
+     * @param tmpfsBudget    the memory reserved for tmpfs chroots, which is not yet in use.
+     */
+    public MockBuildScheduler(@NotNull EventDispatcher<AgentLifeCycleListener> dispatcher,
+                              @NotNull MockTmpfsBudget tmpfsBudget) {
+        this.tmpfsBudget = tmpfsBudget;
+        dispatcher.addListener(this);
+    }
+
+    /**
+     * Read the scheduler settings from the agent configuration.
+     *
+     * @param agent the agent that has just been initialized.
+     */
+    @Override
+    public synchronized void agentInitialized(@NotNull BuildAgent agent) {
+        Map<String, String> parameters = agent.getConfiguration().getConfigurationParameters();
+
+        maxConcurrentBuilds = computeConcurrency(parameters.get(MockConstants.SCHEDULER_MAX_CONCURRENT_BUILDS),
+                parameters.get(MockConstants.SCHEDULER_MEMORY_PER_BUILD_MB));
+        priorityQueue = MockConstants.SCHEDULER_QUEUE_PRIORITY.equals(
+                parameters.get(MockConstants.SCHEDULER_QUEUE_POLICY));
+
+        memoryPerBuild = parseNumber(parameters, MockConstants.SCHEDULER_MEMORY_PER_BUILD_MB,
+                MockConstants.DEFAULT_MEMORY_PER_BUILD_MB).longValue() * 1024 * 1024;
+        minFreeMemory = parseNumber(parameters, MockConstants.SCHEDULER_MIN_FREE_MEMORY_MB,
+                memoryPerBuild / (1024 * 1024)).longValue() * 1024 * 1024;
+        minFreeDisk = parseNumber(parameters, MockConstants.SCHEDULER_MIN_FREE_DISK_MB,
+                MockConstants.DEFAULT_MIN_FREE_DISK_MB).longValue() * 1024 * 1024;
+        maxLoadPerCore = parseNumber(parameters, MockConstants.SCHEDULER_MAX_LOAD_PER_CORE,
+                MockConstants.DEFAULT_MAX_LOAD_PER_CORE).doubleValue();
+
+        Loggers.AGENT.info("Mock build scheduler: " + maxConcurrentBuilds + " concurrent builds, "
+                + (priorityQueue ? MockConstants.SCHEDULER_QUEUE_PRIORITY : MockConstants.SCHEDULER_QUEUE_FIFO)
+                + " queue, admitting builds with at least " + minFreeMemory / (1024 * 1024) + " MB memory and "
+                + minFreeDisk / (1024 * 1024) + " MB disk free and a load below " + maxLoadPerCore + " per core");
+
+        // The core size may never exceed the maximum, so raise the maximum first and lower it last
+        if (executor != null) {
+            if (maxConcurrentBuilds > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(maxConcurrentBuilds);
+                executor.setCorePoolSize(maxConcurrentBuilds);
+            } else {
+                executor.setCorePoolSize(maxConcurrentBuilds);
+                executor.setMaximumPoolSize(maxConcurrentBuilds);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting new mock builds and cancel any that are still queued or running. Interrupting the worker threads
+     * alone would not stop the mock processes, since reading their output does not respond to interrupts, so each
+     * build is cancelled first: that kills its process tree, after which it returns its chroot instance.
+     */
+    @Override
+    public synchronized void agentShutdown() {
+        if (executor == null) {
+            return;
+        }
+
+        for (ScheduledMockBuild build : scheduled) {
+            build.callable.cancel();
+        }
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                Loggers.AGENT.warn("Mock build scheduler did not terminate cleanly");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+
+    /**
+     * Queue a single mock build for execution.
+     *
+     * @param chrootName the name of the chroot being built, used for reporting.
+     * @param callable   the mock build thread to run, which is cancelled if the agent shuts down.
+     * @param priority   the priority of the build. Higher values run first if the priority queue policy is enabled,
+     *                   otherwise builds run in submission order.
+     * @param logger     the build progress logger, to which queue depth and wait time are reported.
+     * @param completed  queue to which the returned future is added once the build completes or is cancelled, so that
+     *                   results can be processed in completion order.
+     *
+     * @return a future representing the pending result of the build.
+     */
+    public Future<BuildFinishedStatus> submit(@NotNull String chrootName,
+                                              @NotNull MockCallable callable,
+                                              int priority,
+                                              @NotNull BuildProgressLogger logger,
+                                              @NotNull BlockingQueue<Future<BuildFinishedStatus>> completed) {
+        ThreadPoolExecutor executor = getExecutor();
+        ScheduledMockBuild task = new ScheduledMockBuild(chrootName, callable, priorityQueue ? priority : 0,
+                sequence.getAndIncrement(), logger, completed);
+
+        logger.message("Queued mock build: " + chrootName + " (queued: " + executor.getQueue().size()
+                + ", running: " + running.get() + "/" + maxConcurrentBuilds + ")");
+        scheduled.add(task);
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * @return the number of mock builds waiting for a free slot or for resources.
+     */
+    public int getQueueDepth() {
+        ThreadPoolExecutor executor = this.executor;
+        return (executor == null ? 0 : executor.getQueue().size()) + waiting.get();
+    }
+
+    /**
+     * @return the number of mock builds currently running.
+     */
+    public int getRunningCount() {
+        return running.get();
+    }
+
+    /**
+     * @return the maximum number of mock builds that may run concurrently on this agent.
+     */
+    public int getMaxConcurrentBuilds() {
+        return maxConcurrentBuilds;
+    }
+
+    /**
+     * Lazily create the thread pool, so that builds can still be scheduled if the agent initialized event was missed.
+     *
+     * @return the thread pool executor.
+     */
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(maxConcurrentBuilds, maxConcurrentBuilds, 60, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(@NotNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "mock-build-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * @param parameters   the agent configuration parameters.
+     * @param key          the parameter to read.
+     * @param defaultValue the value to use if the parameter is not set or invalid. 0 disables the check it controls.
+     *
+     * @return the value of the parameter.
+     */
+    private static Number parseNumber(Map<String, String> parameters, String key, Number defaultValue) {
+        String value = parameters.get(key);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            Loggers.AGENT.warn("Invalid value for " + key + ": " + value + ", using default");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Block until the host has the resources to start another mock build, then count it as running and reserve memory
+     * for it.
+     *
+     * @param build the build about to start.
+     *
+     * @return true if the build may start, false if it was cancelled while waiting.
+     */
+    private boolean awaitResources(ScheduledMockBuild build) {
+        String lastReason = null;
+        long waitingSince = System.currentTimeMillis();
+
+        while (!build.isCancelled()) {
+            String reason;
+            synchronized (admissionLock) {
+                reason = running.get() > 0 ? checkResources() : null;
+                if (reason == null) {
+                    running.incrementAndGet();
+                    recentAdmissions.add(System.currentTimeMillis());
+                    if (lastReason != null) {
+                        build.logger.message("Resources available for " + build.chrootName + " after "
+                                + (System.currentTimeMillis() - waitingSince) / 1000 + "s");
+                    }
+                    return true;
+                }
+            }
+
+            // Only log when the reason changes, not on every poll
+            if (!reason.equals(lastReason)) {
+                build.logger.message("Waiting to start mock build " + build.chrootName + ": " + reason);
+                lastReason = reason;
+            }
+
+            try {
+                Thread.sleep(MockConstants.ADMISSION_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                // The scheduler is shutting down, make sure whoever waits for this build hears about it
+                build.cancel(false);
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Must be called holding the admission lock.
+     *
+     * @return why another build can't be started right now, or null if it can.
+     */
+    private String checkResources() {
+        long now = System.currentTimeMillis();
+        while (!recentAdmissions.isEmpty() && now - recentAdmissions.getFirst() > MockConstants.ADMISSION_SETTLE_TIME) {
+            recentAdmissions.removeFirst();
+        }
+
+        long availableMemory = SystemResources.getAvailableMemory();
+        if (minFreeMemory > 0 && availableMemory >= 0) {
+            long reserved = recentAdmissions.size() * memoryPerBuild;
+            long tmpfsReserved = tmpfsBudget.getReservedMb() * 1024 * 1024;
+            if (availableMemory - reserved - tmpfsReserved < minFreeMemory) {
+                return "only " + availableMemory / (1024 * 1024) + " MB memory available"
+                        + (reserved > 0 ? " (" + reserved / (1024 * 1024) + " MB reserved by builds just started)" : "")
+                        + (tmpfsReserved > 0 ? " (" + tmpfsReserved / (1024 * 1024) + " MB reserved for tmpfs)" : "")
+                        + ", need " + minFreeMemory / (1024 * 1024) + " MB";
+            }
+        }
+
+        long freeDisk = SystemResources.getUsableDiskSpace(new File(MockConstants.MOCK_CHROOT_DIR));
+        if (minFreeDisk > 0 && freeDisk >= 0 && freeDisk < minFreeDisk) {
+            return "only " + freeDisk / (1024 * 1024) + " MB free in " + MockConstants.MOCK_CHROOT_DIR + ", need "
+                    + minFreeDisk / (1024 * 1024) + " MB";
+        }
+
+        double load = SystemResources.getLoadAverage();
+        int cores = SystemResources.getAvailableProcessors();
+        if (maxLoadPerCore > 0 && load >= 0 && load / cores > maxLoadPerCore) {
+            return "load average " + load + " exceeds " + maxLoadPerCore + " per core (" + cores + " cores)";
+        }
+
+        return null;
+    }
+
+    /**
+     * Work out the concurrency limit from the configured value.
+     *
+     * @param setting          the configured limit: a number, "auto", or null to use the default.
+     * @param memoryPerBuildMb the amount of memory to reserve for each build when deriving the limit automatically.
+     *
+     * @return the number of mock builds that may run concurrently.
+     */
+    protected static int computeConcurrency(String setting, String memoryPerBuildMb) {
+        if (setting == null || setting.trim().length() == 0) {
+            return MockConstants.MAX_CONCURRENT_MOCK_BUILDS;
+        }
+
+        if (!setting.trim().equalsIgnoreCase(MockConstants.SCHEDULER_AUTO)) {
+            try {
+                return Math.max(1, Integer.parseInt(setting.trim()));
+            } catch (NumberFormatException e) {
+                Loggers.AGENT.warn("Invalid value for " + MockConstants.SCHEDULER_MAX_CONCURRENT_BUILDS + ": "
+                        + setting + ", using default");
+                return MockConstants.MAX_CONCURRENT_MOCK_BUILDS;
+            }
+        }
+
+        long memoryPerBuild = MockConstants.DEFAULT_MEMORY_PER_BUILD_MB;
+        if (memoryPerBuildMb != null) {
+            try {
+                memoryPerBuild = Long.parseLong(memoryPerBuildMb.trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        int limit = SystemResources.getAvailableProcessors();
+        long totalMemory = SystemResources.getTotalMemory();
+        if (totalMemory > 0 && memoryPerBuild > 0) {
+            limit = (int) Math.min(limit, totalMemory / (memoryPerBuild * 1024 * 1024));
+        }
+
+        return Math.max(1, limit);
+    }
+
+    /**
+     * A queued mock build. Ordered by priority (highest first), then by submission order.
+     */
+    private class ScheduledMockBuild extends FutureTask<BuildFinishedStatus>
+            implements Comparable<ScheduledMockBuild> {
+
+        private final String chrootName;
+        private final MockCallable callable;
+        private final int priority;
+        private final long sequenceNumber;
+        private final long queuedAt;
+        private final BuildProgressLogger logger;
+        private final BlockingQueue<Future<BuildFinishedStatus>> completed;
+
+        public ScheduledMockBuild(String chrootName, MockCallable callable, int priority,
+                                  long sequenceNumber, BuildProgressLogger logger,
+                                  BlockingQueue<Future<BuildFinishedStatus>> completed) {
+            super(callable);
+            this.chrootName = chrootName;
+            this.callable = callable;
+            this.priority = priority;
+            this.sequenceNumber = sequenceNumber;
+            this.queuedAt = System.currentTimeMillis();
+            this.logger = logger;
+            this.completed = completed;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+            // Free the queue slot straight away rather than waiting for a worker to pick up the dead task
+            ThreadPoolExecutor executor = MockBuildScheduler.this.executor;
+            if (cancelled && executor != null) {
+                executor.remove(this);
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            scheduled.remove(this);
+            completed.add(this);
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled()) {
+                return;
+            }
+
+            // Holds this worker (and its slot) until the host can take another build, then counts it as running
+            boolean admitted;
+            waiting.incrementAndGet();
+            try {
+                admitted = awaitResources(this);
+            } finally {
+                waiting.decrementAndGet();
+            }
+            if (!admitted) {
+                return;
+            }
+
+            long waited = System.currentTimeMillis() - queuedAt;
+            logger.message("Starting mock build: " + chrootName + " (waited " + waited / 1000 + "s in queue, "
+                    + getQueueDepth() + " still queued)");
+
+            try {
+                super.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(@NotNull ScheduledMockBuild other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequenceNumber < other.sequenceNumber ? -1 : (sequenceNumber == other.sequenceNumber ? 0 : 1);
+        }
+    }
+}
@@ -20,40 +20,79 @@
 
 package ch.cern.dss.teamcity.agent;
 
+import ch.cern.dss.teamcity.agent.util.FileTransfer;
+import ch.cern.dss.teamcity.agent.util.MockConfig;
+import ch.cern.dss.teamcity.agent.util.SystemResources;
 import ch.cern.dss.teamcity.common.MockConstants;
+import ch.cern.dss.teamcity.common.MockLogSummary;
+import ch.cern.dss.teamcity.common.OutputListener;
+import ch.cern.dss.teamcity.common.RpmHeader;
+import ch.cern.dss.teamcity.common.SystemCommand;
 import ch.cern.dss.teamcity.common.SystemCommandResult;
 import ch.cern.dss.teamcity.common.Util;
-import com.intellij.openapi.util.text.StringUtil;
 import jetbrains.buildServer.RunBuildException;
+import jetbrains.buildServer.agent.ArtifactsWatcher;
 import jetbrains.buildServer.agent.BuildFinishedStatus;
 import jetbrains.buildServer.agent.BuildProgressLogger;
-import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.agent.FlowLogger;
 import org.apache.commons.io.FileUtils;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.File;
-import java.io.FilenameFilter;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.Callable;
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Callable (thread) implementation in which to run a single mock build.
  */
 public class MockCallable implements Callable<BuildFinishedStatus> {
 
+
     private final MockContext context;
-    private final BuildProgressLogger logger;
+    private final MockBuildScheduler scheduler;
+    private final MockChrootPool chrootPool;
+    private final MockBuildCache buildCache;
+    private final MockTmpfsBudget tmpfsBudget;
+    private final MockMetrics metrics;
+    private final ArtifactsWatcher artifactsWatcher;
+    private final FlowLogger logger;
+    private final FileTransfer fileTransfer = new FileTransfer();
+    private MockChrootPool.Lease lease;
+    private long tmpfsReservedMb = 0;
+    private final Map<String, Long> phaseTimes = new LinkedHashMap<String, Long>();
+    private int rpmCount = 0;
+    private long rpmBytes = 0;
+    private volatile SystemCommand currentCommand;
+    private volatile boolean cancelled = false;
 
     /**
-     * @param context the context utility class.
-     * @param logger  the build progress logger.
+     * @param context          the context utility class.
+     * @param scheduler        the scheduler running this build, used to share the cores between concurrent builds.
+     * @param chrootPool       the pool from which to lease a chroot instance.
+     * @param buildCache       the cache of previous build results.
+     * @param tmpfsBudget      the memory budget to reserve a tmpfs from.
+     * @param metrics          the agent-wide metrics, to which phase times and published bytes are added.
+     * @param artifactsWatcher used to hand each published file to TeamCity as soon as it is in place.
+     * @param logger           the build progress logger. Each chroot logs to its own flow, so that the output of
+     *                         concurrent builds is not interleaved.
      */
-    public MockCallable(@NotNull MockContext context, @NotNull BuildProgressLogger logger) {
+    public MockCallable(@NotNull MockContext context,
+                        @NotNull MockBuildScheduler scheduler,
+                        @NotNull MockChrootPool chrootPool,
+                        @NotNull MockBuildCache buildCache,
+                        @NotNull MockTmpfsBudget tmpfsBudget,
+                        @NotNull MockMetrics metrics,
+                        @NotNull ArtifactsWatcher artifactsWatcher,
+                        @NotNull BuildProgressLogger logger) {
         this.context = context;
-        this.logger = logger;
+        this.scheduler = scheduler;
+        this.chrootPool = chrootPool;
+        this.buildCache = buildCache;
+        this.tmpfsBudget = tmpfsBudget;
+        this.metrics = metrics;
+        this.artifactsWatcher = artifactsWatcher;
+        this.logger = logger.getFlowLogger("mock-" + context.getTaskName());
     }
 
     /**
@@ -64,49 +103,334 @@ public class MockCallable implements Callable<BuildFinishedStatus> {
      */
     @Override
     public BuildFinishedStatus call() throws RunBuildException {
+        logger.startFlow();
 
-        // Initialize the chroot environment, if necessary.
         try {
+            // Skip the build entirely if the exact same one has been done before. Chain builds produce a result tree
+            // per package, which the cache doesn't hold
+            String cacheKey = buildCache.isEnabled() && !context.isChainMode() ? computeCacheKey() : null;
+            if (cacheKey != null && publishCachedResults(cacheKey)) {
+                return BuildFinishedStatus.FINISHED_SUCCESS;
+            }
 
-            if (!new File(MockConstants.MOCK_CHROOT_DIR, context.getChrootName()).exists()) {
+            lease = chrootPool.lease(context.getChrootName(), context.getMockConfigDirectory());
+            context.setUniqueExtension(lease.getUniqueExtension());
+            chrootPool.useRootCache(lease, context.getConfigHash());
+            logger.message("Using " + (lease.isPooled() ? "pooled" : "transient") + " chroot instance: "
+                    + context.getChrootDirectory());
+
+            // A stored hash means the instance was initialized for that config and not built in since. Either way it
+            // won't be clean once we are done, so forget it now. Re-initialize unless it is clean and up to date
+            String storedHash = MockConfig.readStoredHash(context.getChrootDirectory());
+            MockConfig.deleteStoredHash(context.getChrootDirectory());
+            if (!context.getChrootDirectory().exists() || storedHash == null) {
+                initializeChrootEnvironment();
+            } else if (!storedHash.equals(context.getConfigHash())) {
+                logger.message("Mock config changed since chroot was initialized, re-initializing");
                 initializeChrootEnvironment();
             }
 
             clean();
-            rebuild();
-            publishResults();
-            publishManifest();
+            reserveTmpfs();
+            if (context.isChainMode()) {
+                chainBuild();
+                return BuildFinishedStatus.FINISHED_SUCCESS;
+            }
+
+            boolean succeeded = rebuild();
+            List<File> rpms = publishResults(context.getResultDirectory(), context.getLogDirectoryName());
+            context.setPublishedRpms(rpms);
+            collectManifestEntries(rpms);
+            publishToLocalRepository(context.getResultDirectory());
+
+            // Only cache builds where mock itself was happy
+            if (cacheKey != null && succeeded) {
+                buildCache.store(cacheKey, context.getResultDirectory());
+            }
 
         } catch (Exception e) {
+            if (cancelled) {
+                logger.message("Mock build cancelled: " + context.getTaskName());
+                return BuildFinishedStatus.INTERRUPTED;
+            }
             logger.exception(e);
             return BuildFinishedStatus.FINISHED_FAILED;
+        } finally {
+            cleanup();
+            reportStatistics();
+            logger.disposeFlow();
         }
 
         return BuildFinishedStatus.FINISHED_SUCCESS;
     }
 
+    /**
+     * Add the time spent in a phase of this build to its total, for {@link #reportStatistics()}.
+     *
+     * @param phase the name of the phase.
+     * @param start the time the phase started at.
+     */
+    private void recordPhase(String phase, long start) {
+        long elapsed = System.currentTimeMillis() - start;
+        Long total = phaseTimes.get(phase);
+        phaseTimes.put(phase, total == null ? elapsed : total + elapsed);
+        metrics.observePhase(phase, elapsed);
+    }
+
+    /**
+     * Report the time spent in each phase and the published RPMs as build statistics, so that TeamCity can graph them
+     * per chroot across builds. Keys are of the form mock.&lt;statistic&gt;.&lt;chroot&gt;[.&lt;macro set&gt;][.&lt;package&gt;],
+     * e.g. mock.time.rebuild.epel-6-x86_64, with the package name but not its version, so that they stay the same from
+     * one build to the next.
+     */
+    private void reportStatistics() {
+        String task = context.getArtifactsDirectoryName().replace('/', '.');
+        if (context.getPackageName() != null) {
+            task += "." + getSourcePackageName();
+        }
+        task = task.replaceAll("[^A-Za-z0-9._-]", "_");
+
+        for (Map.Entry<String, Long> entry : phaseTimes.entrySet()) {
+            reportStatistic("mock.time." + entry.getKey() + "." + task, entry.getValue());
+        }
+        reportStatistic("mock.rpms.count." + task, rpmCount);
+        reportStatistic("mock.rpms.bytes." + task, rpmBytes);
+    }
+
+    private void reportStatistic(String key, long value) {
+        logger.message("##teamcity[buildStatisticValue key='" + key + "' value='" + value + "']");
+    }
+
+    /**
+     * @return the name of the source package built, without its version and release: from its header, or if that
+     *         can't be read, from its file name.
+     */
+    private String getSourcePackageName() {
+        try {
+            String name = RpmHeader.read(new File(context.getSrpms().get(0))).getName();
+            if (name != null) {
+                return name;
+            }
+        } catch (Exception e) {
+            // Fall back to the file name
+        }
+
+        // Source RPMs are named <name>-<version>-<release>.src.rpm
+        String name = context.getPackageName();
+        for (int i = 0; i < 2 && name.lastIndexOf('-') > 0; i++) {
+            name = name.substring(0, name.lastIndexOf('-'));
+        }
+        return name;
+    }
+
+    /**
+     * Publish the results of an identical earlier build from the build cache, if there is one.
+     *
+     * @param cacheKey the cache key of this build.
+     *
+     * @return true on a cache hit, false on a miss.
+     * @throws IOException
+     * @throws RunBuildException
+     */
+    private boolean publishCachedResults(String cacheKey) throws IOException, RunBuildException {
+        File cached = buildCache.lookup(cacheKey);
+        logger.message("Build cache " + (cached != null ? "hit" : "miss") + " (" + cacheKey.substring(0, 16)
+                + "), agent totals: " + buildCache.getHits() + " hits, " + buildCache.getMisses() + " misses");
+
+        if (cached == null) {
+            return false;
+        }
+
+        try {
+            List<File> rpms = publishResults(cached, context.getLogDirectoryName());
+            context.setPublishedRpms(rpms);
+            collectManifestEntries(rpms);
+            publishToLocalRepository(cached);
+        } finally {
+            buildCache.release(cacheKey);
+        }
+        return true;
+    }
+
+    /**
+     * Compute the build cache key, from the contents of the source RPMs, the resolved chroot config, the packages
+     * built by the upstream tasks this package build-requires and the RPM macros. Other packages which happen to be in
+     * the local repository already are left out, so that the key doesn't depend on the order tasks finish in.
+     *
+     * @return the hex-encoded cache key.
+     * @throws IOException
+     */
+    private String computeCacheKey() throws IOException {
+        MessageDigest digest = Util.newSha256Digest();
+
+        for (String srpm : context.getSrpms()) {
+            digest.update(contentDigest(new File(srpm)).getBytes("UTF-8"));
+        }
+        digest.update(context.getConfigHash().getBytes("UTF-8"));
+        // Packages built against earlier packages of this run depend on their exact contents too
+        for (MockContext upstream : context.getUpstream()) {
+            List<String> digests = new ArrayList<String>();
+            for (File rpm : upstream.getPublishedRpms()) {
+                digests.add(contentDigest(rpm));
+            }
+            Collections.sort(digests);
+            for (String rpmDigest : digests) {
+                digest.update(rpmDigest.getBytes("UTF-8"));
+            }
+        }
+        if (context.getRpmMacros() != null) {
+            for (String macro : processRpmMacros(context.getRpmMacros())) {
+                digest.update((macro + "\n").getBytes("UTF-8"));
+            }
+        }
+
+        return Util.toHexString(digest.digest());
+    }
+
+    /**
+     * @param rpm a binary or source RPM.
+     *
+     * @return the digests rpm recorded in the package header, or if there are none, the SHA-256 of the whole file.
+     *         The header digests are trusted as they are, without checking them against the payload, so a package
+     *         whose payload was modified after it was built is not told apart from the original.
+     * @throws IOException
+     */
+    private static String contentDigest(File rpm) throws IOException {
+        String digest = RpmHeader.read(rpm).getContentDigest();
+        return digest != null ? digest : Util.sha256(rpm);
+    }
+
+    /**
+     * Stop this build: kill the mock process tree if one is running (see {@link #runCommand}), and prevent any further
+     * commands from starting. May be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+
+        SystemCommand command = currentCommand;
+        if (command != null) {
+            command.kill();
+        }
+    }
+
+    /**
+     * Run a system command, keeping track of it so that it can be killed if this build is cancelled. The output is
+     * streamed line by line into a block in the build log as it arrives; only its tail is kept in the result.
+     *
+     * @param command    the command to run.
+     * @param activity   the name of the build log block to stream the output into.
+     * @param timeout    the maximum run time of this phase in milliseconds, or 0 for no limit. The no-output timeout
+     *                   from the runner parameters also applies.
+     * @param echoOutput false to only keep the tail of the output, when the build log gets it some other way.
+     *
+     * @return the process exit code and output tail.
+     * @throws InterruptedException if the build was cancelled.
+     * @throws IOException
+     */
+    private SystemCommandResult runCommand(String[] command, String activity, long timeout, final boolean echoOutput)
+            throws InterruptedException, IOException {
+        SystemCommand systemCommand = new SystemCommand(command);
+        systemCommand.setTimeouts(timeout, context.getTimeout(MockConstants.NO_OUTPUT_TIMEOUT));
+        systemCommand.setOutputListener(new OutputListener() {
+            @Override
+            public void onOutputLine(String line) {
+                if (echoOutput) {
+                    logger.message(line);
+                }
+            }
+        }, MockConstants.OUTPUT_TAIL_LINES);
+
+        // Mock runs as root, out of reach of the agent's kill; mock itself can kill what runs in its chroot
+        systemCommand.setKillHandling(new String[]{MockConstants.MOCK_EXECUTABLE,
+                "--orphanskill", "-r", context.getChrootName(),
+                "--configdir=" + context.getMockConfigDirectory(),
+                "--uniqueext=" + context.getUniqueExtension()}, new OutputListener() {
+            @Override
+            public void onOutputLine(String line) {
+                logger.warning("Unable to kill mock (" + context.getTaskName() + "): " + line);
+            }
+        });
+        currentCommand = systemCommand;
+
+        // Don't start anything new if we were cancelled before the command was registered
+        if (cancelled) {
+            systemCommand.kill();
+        }
+
+        logger.activityStarted(activity, MockConstants.TYPE);
+        metrics.processStarted();
+        try {
+            return systemCommand.run();
+        } finally {
+            metrics.processFinished();
+            logger.activityFinished(activity, MockConstants.TYPE);
+            currentCommand = null;
+        }
+    }
+
+    /**
+     * Start following the logs mock writes into the result directory, so that the progress of the build shows up in
+     * the build log while it runs rather than only in the published logs. Mock itself may print nothing for as long
+     * as rpmbuild runs, so each line also counts as output for the no-output timeout of the running command.
+     *
+     * @return the running tailer, to be stopped once mock has exited.
+     */
+    private MockLogTailer startLogTailer() {
+        MockLogTailer tailer = new MockLogTailer(context.getResultDirectory(), MockConstants.MOCK_LOG_FILES,
+                new OutputListener() {
+                    @Override
+                    public void onOutputLine(String line) {
+                        SystemCommand command = currentCommand;
+                        if (command != null) {
+                            command.touch();
+                        }
+                        logger.message(line);
+                    }
+                }, context.getLogThrottle());
+        tailer.start("mock-log-tail-" + context.getTaskName());
+        return tailer;
+    }
+
     /**
      * Initialize an individual chroot environment with mock.
      *
      * @throws RunBuildException
+     * @throws IOException if the config hash cannot be computed.
      */
-    private void initializeChrootEnvironment() throws RunBuildException {
+    private void initializeChrootEnvironment() throws RunBuildException, IOException {
+        long start = System.currentTimeMillis();
         logger.message("Initializing mock environment: " + context.getChrootName());
 
+        // Warm-start from the root cache tarball for this exact config, if there is one
         String[] command = {MockConstants.MOCK_EXECUTABLE,
                 "--init", "-r", context.getChrootName(),
-                "--configdir=" + context.getMockConfigDirectory()};
+                "--configdir=" + context.getMockConfigDirectory(),
+                "--uniqueext=" + context.getUniqueExtension(),
+                MockConfig.getRootCacheOption(context.getMockConfigDirectory(), context.getChrootName(),
+                        context.getConfigHash())};
         SystemCommandResult result;
 
         try {
-            result = Util.runSystemCommand(command);
+            result = runCommand(command, "mock --init " + context.getChrootName(),
+                    context.getTimeout(MockConstants.INIT_TIMEOUT), true);
         } catch (Exception e) {
             throw new RunBuildException("Unable to initialize mock environment", e);
         }
 
+        if (result.isTimedOut()) {
+            throw new RunBuildException("Mock environment initialization reaped: " + result.getTimeoutReason());
+        }
+
         if (result.getReturnCode() != 0) {
             throw new RunBuildException("Unable to initialize mock environment: " + result.getOutput());
         }
+
+        int pruned = chrootPool.pruneRootCaches(context.getChrootName(), context.getMockConfigDirectory(),
+                context.getConfigHash());
+        if (pruned > 0) {
+            logger.message("Removed " + pruned + " root cache(s) of earlier configs of " + context.getChrootName());
+        }
+        recordPhase("init", start);
     }
 
     /**
@@ -115,32 +439,204 @@ public class MockCallable implements Callable<BuildFinishedStatus> {
      * @throws IOException
      */
     private void clean() throws IOException {
-        FileUtils.deleteDirectory(new File(MockConstants.MOCK_CHROOT_DIR, context.getChrootName() + "/result"));
+        long start = System.currentTimeMillis();
+        FileUtils.deleteDirectory(context.getResultDirectory());
+        context.getResultDirectory().mkdirs();
+        recordPhase("clean", start);
+    }
+
+    /**
+     * Remove this build's result directory once the results have been published, and return the chroot instance to
+     * the pool. Failures are only logged, since the build outcome has already been decided.
+     */
+    private void cleanup() {
+        try {
+            FileUtils.deleteDirectory(context.getResultDirectory());
+        } catch (IOException e) {
+            logger.warning("Unable to remove result directory " + context.getResultDirectory() + ": "
+                    + e.getMessage());
+        }
+
+        // Always returned, even after the build has been cancelled
+        if (lease != null) {
+            chrootPool.release(lease);
+        }
+        if (tmpfsReservedMb > 0) {
+            tmpfsBudget.release(tmpfsReservedMb);
+        }
+    }
+
+    /**
+     * Decide whether to build on tmpfs: only if the runner asks for it and the agent's tmpfs budget has room for it.
+     */
+    private void reserveTmpfs() {
+        long sizeMb = context.getTmpfsSizeMb();
+        if (sizeMb <= 0) {
+            return;
+        }
+
+        if (tmpfsBudget.reserve(sizeMb)) {
+            tmpfsReservedMb = sizeMb;
+        } else {
+            logger.message("Agent tmpfs budget exhausted (" + tmpfsBudget.getReservedMb() + " of "
+                    + tmpfsBudget.getBudgetMb() + " MB in use), building " + context.getTaskName() + " on disk");
+        }
+    }
+
+    /**
+     * @return the mock options to build on tmpfs, if a tmpfs was reserved for this build.
+     */
+    private String[] getTmpfsOptions() {
+        if (tmpfsReservedMb <= 0) {
+            return new String[0];
+        }
+        return new String[]{"--enable-plugin=tmpfs",
+                "--plugin-option=tmpfs:max_fs_size=" + tmpfsReservedMb + "m"};
+    }
+
+    /**
+     * Run mock --rebuild or --chain, following its logs while it runs, and report the storage it used afterwards.
+     *
+     * @param command  the mock command.
+     * @param activity the name of the build log block to stream the output into.
+     *
+     * @return the process exit code and output tail.
+     * @throws RunBuildException if mock could not be run, or was cancelled.
+     */
+    private SystemCommandResult runBuild(String[] command, String activity) throws RunBuildException {
+        logger.message("Running mock: " + Arrays.toString(command));
+
+        long start = System.currentTimeMillis();
+        MockLogTailer tailer = startLogTailer();
+        TmpfsUsageMonitor usageMonitor = null;
+        if (tmpfsReservedMb > 0) {
+            usageMonitor = new TmpfsUsageMonitor();
+            usageMonitor.start();
+        }
+
+        try {
+            // Everything mock and rpmbuild print also goes into the logs, which the (throttled) tailer follows
+            return runCommand(command, activity, context.getTimeout(MockConstants.REBUILD_TIMEOUT), false);
+        } catch (Exception e) {
+            throw new RunBuildException("Error running mock", e);
+        } finally {
+            recordPhase("rebuild", start);
+            tailer.stop();
+            if (usageMonitor != null) {
+                usageMonitor.interrupt();
+                logger.message("Storage (" + context.getTaskName() + "): tmpfs, peak usage "
+                        + usageMonitor.getPeakUsage() / (1024 * 1024) + " of " + tmpfsReservedMb + " MB");
+            } else {
+                long diskUsage = getChrootDiskUsage();
+                if (diskUsage >= 0) {
+                    logger.message("Storage (" + context.getTaskName() + "): disk, chroot size "
+                            + diskUsage / (1024 * 1024) + " MB");
+                }
+            }
+        }
+    }
+
+    /**
+     * Walking a large chroot can take a while, so du is given up on after {@link MockConstants#DISK_USAGE_TIMEOUT} ms
+     * rather than holding up the build.
+     *
+     * @return the size of the chroot on disk in bytes, or -1 if it could not be determined.
+     */
+    private long getChrootDiskUsage() {
+        try {
+            SystemCommand command = new SystemCommand(new String[]{"du", "-sk",
+                    new File(context.getChrootDirectory(), "root").getAbsolutePath()});
+            command.setTimeouts(MockConstants.DISK_USAGE_TIMEOUT, 0);
+            SystemCommandResult result = command.run();
+            if (result.isTimedOut()) {
+                logger.message("Storage (" + context.getTaskName() + "): du " + result.getTimeoutReason());
+                return -1;
+            }
+            // du exits non-zero if some directories are unreadable, but still prints the total of the rest
+            String[] lines = result.getOutput().trim().split("\n");
+            return Long.parseLong(lines[lines.length - 1].split("\\s+")[0]) * 1024;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Samples the usage of the chroot's tmpfs while mock runs, to find its peak.
+     */
+    private class TmpfsUsageMonitor extends Thread {
+
+        private volatile long peakUsage = 0;
+
+        TmpfsUsageMonitor() {
+            super("mock-tmpfs-usage-" + context.getTaskName());
+            setDaemon(true);
+        }
+
+        long getPeakUsage() {
+            return peakUsage;
+        }
+
+        @Override
+        public void run() {
+            File root = new File(context.getChrootDirectory(), "root");
+            long limit = tmpfsReservedMb * 1024 * 1024;
+
+            while (!isInterrupted()) {
+                // Until mock has mounted the tmpfs, this reports the filesystem underneath, which is much bigger
+                long total = root.getTotalSpace();
+                if (total > 0 && total <= limit) {
+                    peakUsage = Math.max(peakUsage, total - root.getFreeSpace());
+                }
+
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
     }
 
     /**
      * Run the actual mock build.
      *
+     * @return true if mock exited cleanly, false if it exited with a non-zero code but still produced RPMs.
      * @throws RunBuildException
+     * @throws IOException if the config hash cannot be computed.
      */
-    private void rebuild() throws RunBuildException {
+    private boolean rebuild() throws RunBuildException, IOException {
         String[] command = {MockConstants.MOCK_EXECUTABLE,
                 "--rebuild", "-r", context.getChrootName(),
                 "--configdir=" + context.getMockConfigDirectory(),
-                StringUtil.join(context.getSrpms(), " ")};
+                "--uniqueext=" + context.getUniqueExtension(),
+                "--resultdir=" + context.getResultDirectory().getAbsolutePath(),
+                MockConfig.getRootCacheOption(context.getMockConfigDirectory(), context.getChrootName(),
+                        context.getConfigHash())};
+
+        // Build against the packages built earlier in this run, if we depend on any
+        if (context.getBuildRepository() != null && context.getBuildRepository().hasPackages()) {
+            command = Util.concatArrays(command, new String[]{context.getBuildRepository().getAddRepoOption()});
+        }
 
-        // Append RPM macros if we have any
-        if (context.getRpmMacros() != null) {
-            command = Util.concatArrays(command, processRpmMacros(context.getRpmMacros()));
+        // call() only gets here with a root initialized for this exact config and not built in since (either just now,
+        // or by the pool, which stores the hash only after a successful init), so don't let mock throw it away. A
+        // tmpfs is mounted empty over the root, so there is nothing to keep then
+        if (tmpfsReservedMb == 0) {
+            command = Util.concatArrays(command, new String[]{"--no-clean"});
         }
 
-        SystemCommandResult result;
-        logger.message("Running mock: " + Arrays.toString(command));
+        command = Util.concatArrays(command, getTmpfsOptions());
+        command = Util.concatArrays(command, context.getSrpms().toArray(new String[context.getSrpms().size()]));
 
-        try {
-            result = Util.runSystemCommand(command);
-        } catch (Exception e) {
-            throw new RunBuildException("Error running mock", e);
+        command = Util.concatArrays(command, getRpmMacroOptions());
+
+        SystemCommandResult result = runBuild(command, "mock --rebuild " + context.getTaskName());
+
+        if (result.isTimedOut()) {
+            throw new RunBuildException("Mock build reaped: " + result.getTimeoutReason());
         }
 
         if (result.getReturnCode() != 0) {
@@ -148,15 +644,119 @@ public class MockCallable implements Callable<BuildFinishedStatus> {
         }
 
         // Check if rpms were created
-        File rpmDirectory = new File(MockConstants.MOCK_CHROOT_DIR, context.getChrootName() + "/result");
-        File[] files = rpmDirectory.listFiles(new FilenameFilter() {
+        File[] files = context.getResultDirectory().listFiles(new FilenameFilter() {
             @Override
             public boolean accept(File directory, String name) {
                 return name.endsWith(".rpm");
             }
         });
 
-        if (files.length <= 0) throw new RunBuildException("Error running mock: RPMs not created");
+        if (files == null || files.length <= 0) throw new RunBuildException("Error running mock: RPMs not created");
+
+        return result.getReturnCode() == 0;
+    }
+
+    /**
+     * Build all source RPMs of the run in one mock session with mock --chain, in dependency order, so that each
+     * package is built against the ones before it. Mock keeps a result directory per package; each package's RPMs and
+     * logs are published as soon as the chain has finished, even if other packages failed.
+     *
+     * @throws RunBuildException if the chain timed out, or if any package failed to build.
+     * @throws IOException
+     */
+    private void chainBuild() throws RunBuildException, IOException {
+        String[] command = {MockConstants.MOCK_EXECUTABLE,
+                "--chain", "-r", context.getChrootName(),
+                "--configdir=" + context.getMockConfigDirectory(),
+                "--uniqueext=" + context.getUniqueExtension(),
+                "--localrepo=" + context.getResultDirectory().getAbsolutePath(),
+                MockConfig.getRootCacheOption(context.getMockConfigDirectory(), context.getChrootName(),
+                        context.getConfigHash())};
+
+        command = Util.concatArrays(command, getRpmMacroOptions());
+        command = Util.concatArrays(command, getTmpfsOptions());
+        command = Util.concatArrays(command, context.getSrpms().toArray(new String[context.getSrpms().size()]));
+
+        SystemCommandResult result = runBuild(command, "mock --chain " + context.getTaskName());
+
+        if (result.isTimedOut()) {
+            throw new RunBuildException("Mock chain build reaped: " + result.getTimeoutReason());
+        }
+
+        if (result.getReturnCode() != 0) {
+            logger.warning("Mock exited with nozero code (" + result.getReturnCode() + "): " + result.getOutput());
+        }
+
+        // Mock leaves a directory per package under results/<root>/, marked with a "success" or "fail" file
+        List<File> packageDirectories = new ArrayList<File>();
+        File[] roots = new File(context.getResultDirectory(), "results").listFiles();
+        if (roots != null) {
+            for (File root : roots) {
+                File[] directories = root.listFiles();
+                if (directories != null) {
+                    for (File directory : directories) {
+                        if (directory.isDirectory()) {
+                            packageDirectories.add(directory);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (packageDirectories.isEmpty()) {
+            throw new RunBuildException("Error running mock: RPMs not created");
+        }
+
+        List<String> failed = new ArrayList<String>();
+        List<File> rpms = new ArrayList<File>();
+        for (File directory : packageDirectories) {
+            boolean succeeded = new File(directory, "success").exists();
+            logger.message("Package " + directory.getName() + " (" + context.getTaskName() + "): "
+                    + (succeeded ? "built" : "failed"));
+            if (!succeeded) {
+                failed.add(directory.getName());
+            }
+
+            rpms.addAll(publishResults(directory, "logs/" + directory.getName()));
+        }
+        collectManifestEntries(rpms);
+
+        if (!failed.isEmpty()) {
+            throw new RunBuildException("Mock chain build failed for " + failed.size() + " of "
+                    + packageDirectories.size() + " packages: " + failed);
+        }
+    }
+
+    /**
+     * Build the RPM macro definitions to pass to mock: the user-defined macros, and unless they set it themselves, the
+     * make parallelism. By default each rpmbuild would run as many jobs as there are cores, so concurrent chroots
+     * would oversubscribe the CPU; instead the cores are shared between the mock builds running or queued when this one
+     * starts, up to the scheduler's concurrency limit. Counting the queued builds gives builds started together the
+     * same share, whatever order they happen to start in.
+     *
+     * @return the mock command-line options.
+     */
+    private String[] getRpmMacroOptions() {
+        String[] userMacros = context.getRpmMacros() != null
+                ? processRpmMacros(context.getRpmMacros()) : new String[0];
+
+        for (String macro : userMacros) {
+            if (macro.startsWith("_smp_mflags ") || macro.startsWith("_smp_build_ncpus ")) {
+                return userMacros;
+            }
+        }
+
+        int cores = SystemResources.getAvailableProcessors();
+        int running = scheduler.getRunningCount();
+        int queued = scheduler.getQueueDepth();
+        int slots = Math.max(1, Math.min(scheduler.getMaxConcurrentBuilds(), running + queued));
+        int jobs = Math.max(1, cores / slots);
+        logger.message("Make parallelism (" + context.getTaskName() + "): " + jobs + " jobs (" + cores + " cores, "
+                + running + " mock builds running, " + queued + " queued, at most "
+                + scheduler.getMaxConcurrentBuilds() + " at once)");
+
+        return Util.concatArrays(new String[]{"--define", "_smp_build_ncpus " + jobs,
+                "--define", "_smp_mflags -j" + jobs}, userMacros);
     }
 
     /**
@@ -185,9 +785,19 @@ public class MockCallable implements Callable<BuildFinishedStatus> {
     /**
      * Copy the build results and the logs to the artifacts directory.
      *
+     * @param sourceDirectory  the directory holding the results: the mock result directory, a package result
+     *                         directory of a chain build, or a build cache entry.
+     * @param logDirectoryName the name of the directory to publish the logs into, relative to the chroot artifacts.
+     *
+     * @return the published RPMs.
      * @throws IOException
+     * @throws RunBuildException if publishing exceeds its timeout.
      */
-    private void publishResults() throws IOException {
+    private List<File> publishResults(File sourceDirectory, String logDirectoryName)
+            throws IOException, RunBuildException {
+        long timeout = context.getTimeout(MockConstants.PUBLISH_TIMEOUT);
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+
         // Make sure the results (artifacts) directory exists
         File artifactsDirectory = new File(context.getArtifactsPath());
         if (!artifactsDirectory.exists()) {
@@ -195,42 +805,191 @@ public class MockCallable implements Callable<BuildFinishedStatus> {
         }
 
         // Create the destination directory if it doesn't exist
-        File destinationDirectory = new File(artifactsDirectory, context.getChrootName());
+        File destinationDirectory = new File(artifactsDirectory, context.getArtifactsDirectoryName());
         if (!destinationDirectory.exists()) {
             destinationDirectory.mkdirs();
         }
 
         // Create the log directory if it doesn't exist
-        File logDirectory = new File(destinationDirectory, "logs");
+        File logDirectory = new File(destinationDirectory, logDirectoryName);
         if (!logDirectory.exists()) {
             logDirectory.mkdirs();
         }
 
-        // Move the results to the artifact directory
-        File sourceDirectory = new File(MockConstants.MOCK_CHROOT_DIR, context.getChrootName() + "/result");
-        for (File file : sourceDirectory.listFiles()) {
-            if (file.getName().endsWith(".log")) {
-                FileUtils.copyFile(file, new File(logDirectory, file.getName()));
+        // Transfer the results to the artifact directory, several files at a time
+        long start = System.currentTimeMillis();
+        long bytes = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(MockConstants.PUBLISH_THREADS);
+        List<Future<FileTransfer.Method>> transfers = new ArrayList<Future<FileTransfer.Method>>();
+        List<File> published = new ArrayList<File>();
+        List<File> rpms = new ArrayList<File>();
+
+        try {
+            for (final File file : sourceDirectory.listFiles()) {
+                final File destination;
+                if (file.getName().endsWith(".log")) {
+                    destination = new File(logDirectory, file.getName());
+                } else if (file.getName().endsWith(".rpm")) {
+                    destination = new File(destinationDirectory, file.getName());
+                    rpms.add(destination);
+                    rpmCount++;
+                    rpmBytes += file.length();
+                } else {
+                    continue;
+                }
+
+                bytes += file.length();
+                published.add(destination);
+                transfers.add(executor.submit(new Callable<FileTransfer.Method>() {
+                    @Override
+                    public FileTransfer.Method call() throws IOException {
+                        return fileTransfer.transfer(file, destination);
+                    }
+                }));
             }
 
-            if (file.getName().endsWith(".rpm")) {
-                FileUtils.copyFile(file, new File(destinationDirectory, file.getName()));
+            Set<FileTransfer.Method> methods = new TreeSet<FileTransfer.Method>();
+            for (Future<FileTransfer.Method> transfer : transfers) {
+                if (cancelled) {
+                    throw new IOException("Publishing cancelled");
+                }
+                try {
+                    methods.add(transfer.get(Math.max(deadline - System.currentTimeMillis(), 0),
+                            TimeUnit.MILLISECONDS));
+                } catch (TimeoutException e) {
+                    throw new RunBuildException("Publishing results reaped: timed out after " + timeout / 1000 + "s");
+                } catch (InterruptedException e) {
+                    throw new IOException("Publishing interrupted");
+                } catch (ExecutionException e) {
+                    throw new IOException("Unable to publish results: " + e.getCause().getMessage(), e.getCause());
+                }
             }
+
+            recordPhase("publish", start);
+            metrics.addBytesPublished(bytes);
+            long elapsed = System.currentTimeMillis() - start;
+            logger.message("Published " + transfers.size() + " files (" + bytes / (1024 * 1024) + " MB) for "
+                    + context.getTaskName() + " in " + elapsed + "ms, " + methods);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        File summary = writeLogSummary(logDirectory);
+        if (summary != null) {
+            published.add(summary);
         }
+
+        // Start uploading now rather than when the whole build step has finished
+        for (File file : published) {
+            publishArtifact(file);
+        }
+        return rpms;
     }
 
     /**
-     * Write a metadata file inside the chroot result directory, for use by the abi-checker plugin.
+     * Look for errors and warnings in the published logs, so that the server can show the log report from the summary
+     * rather than reading and analyzing the full logs itself.
+     *
+     * @param logDirectory the directory the logs were published into.
+     *
+     * @return the summary file, or null if there were no logs or they could not be analyzed.
+     */
+    private File writeLogSummary(File logDirectory) {
+        if (!new File(logDirectory, "build.log").isFile()) {
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        File summaryFile = new File(logDirectory, MockConstants.LOG_SUMMARY_FILE);
+        try {
+            MockLogSummary summary = MockLogSummary.analyze(logDirectory);
+            summary.write(summaryFile);
+            logger.message("Found " + summary.getErrors() + " errors and " + summary.getWarnings()
+                    + " warnings in the logs of " + context.getTaskName());
+            return summaryFile;
+        } catch (IOException e) {
+            logger.warning("Unable to analyze the logs in " + logDirectory + ": " + e.getMessage());
+            summaryFile.delete();
+            return null;
+        } finally {
+            recordPhase("analyze", start);
+        }
+    }
+
+    /**
+     * Hand a file in the artifacts directory over to TeamCity for upload, keeping its relative location.
+     *
+     * @param file the file to publish.
+     */
+    private void publishArtifact(File file) {
+        File artifactsDirectory = new File(context.getArtifactsPath()).getAbsoluteFile();
+        String targetDirectory = artifactsDirectory.toURI().relativize(file.getParentFile().getAbsoluteFile().toURI())
+                .getPath();
+        if (targetDirectory.endsWith("/")) {
+            targetDirectory = targetDirectory.substring(0, targetDirectory.length() - 1);
+        }
+
+        artifactsWatcher.addNewArtifactsPath(file.getAbsolutePath() + " => " + targetDirectory);
+    }
+
+    /**
+     * Add the built packages to the local repository, so that later packages of this run which build-require them can
+     * be built against them.
+     *
+     * @param sourceDirectory the directory holding the built RPMs.
      *
      * @throws IOException
+     * @throws RunBuildException
      */
-    private void publishManifest() throws IOException {
-        File manifestFile = new File(context.getArtifactsPath(), context.getChrootName() + "/manifest.txt");
-        if (!manifestFile.exists()) {
-            manifestFile.createNewFile();
+    private void publishToLocalRepository(File sourceDirectory) throws IOException, RunBuildException {
+        if (context.getPublishRepository() != null) {
+            context.getPublishRepository().addPackages(sourceDirectory);
         }
+    }
 
-        // Simply write the chroot name for now
-        FileUtil.writeFile(manifestFile, "chroot=" + context.getChrootName(), "UTF-8");
+    /**
+     * Collect the manifest entries of the published RPMs, for use by the abi-checker plugin. Each RPM is listed with
+     * the metadata from its header and its SHA-256. Several tasks may publish into the same chroot, so the manifest
+     * itself is written by {@link MockBuildProcess} once all of them have finished.
+     *
+     * @param rpms the published RPMs.
+     *
+     * @throws IOException
+     */
+    private void collectManifestEntries(List<File> rpms) throws IOException {
+        long start = System.currentTimeMillis();
+        StringBuilder entries = new StringBuilder();
+        for (File rpm : rpms) {
+            String prefix = "rpm." + rpm.getName() + ".";
+            try {
+                RpmHeader header = RpmHeader.read(rpm);
+                entries.append(prefix).append("nevra=").append(header.getNevra()).append("\n");
+                entries.append(prefix).append("arch=").append(header.getArch()).append("\n");
+                if (header.getInstalledSize() != null) {
+                    entries.append(prefix).append("installedSize=").append(header.getInstalledSize()).append("\n");
+                }
+                entries.append(prefix).append("files=").append(header.getFileDigests().size()).append("\n");
+                entries.append(prefix).append("requires=").append(join(header.getRequires())).append("\n");
+                entries.append(prefix).append("provides=").append(join(header.getProvides())).append("\n");
+            } catch (Exception e) {
+                logger.warning("Unable to read the header of " + rpm.getName() + ": " + e.getMessage());
+            }
+            entries.append(prefix).append("size=").append(rpm.length()).append("\n");
+            entries.append(prefix).append("sha256=").append(Util.sha256(rpm)).append("\n");
+        }
+
+        context.setManifestEntries(entries.toString());
+        recordPhase("manifest", start);
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(value);
+        }
+        return sb.toString();
     }
 }
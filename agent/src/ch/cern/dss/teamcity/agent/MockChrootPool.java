@@ -0,0 +1,417 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.agent;
+
+import ch.cern.dss.teamcity.agent.util.MockConfig;
+import ch.cern.dss.teamcity.common.MockConstants;
+import ch.cern.dss.teamcity.common.SystemCommandResult;
+import ch.cern.dss.teamcity.common.Util;
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent-wide pool of pre-initialized mock chroot instances. Each chroot config gets up to
+ * {@link MockConstants#POOL_SIZE} instances, distinguished by their mock --uniqueext suffix. A build leases an idle
+ * instance, and returns it when finished so that it can be re-initialized in the background for the next build. An
+ * instance whose re-initialization failed is only leased when no initialized one is free, and the build then
+ * initializes it itself.
+ * Pooled suffixes include the agent name, so that several agents on one host don't share an instance, and a tag of the
+ * config directory, so that chroot configs of the same name in different directories don't either.
+ * <p/>
+ * If every pooled instance is busy (or pooling is disabled), the build gets a transient instance of its own, which is
+ * removed when it is returned.
+ * <p/>
+ * The pool also keeps track of the root caches that leased and refreshing instances use, so that pruning the root
+ * caches of earlier configs never removes one that is being restored from.
+ */
+public class MockChrootPool extends AgentLifeCycleAdapter {
+
+    private enum State {WARMING, READY, FAILED, LEASED, REFRESHING}
+
+    private final Map<String, List<Instance>> instances = new HashMap<String, List<Instance>>();
+    private final Map<String, Integer> rootCachesInUse = new HashMap<String, Integer>();
+    private final Map<String, Long> lastPruned = new HashMap<String, Long>();
+    private int poolSize = MockConstants.DEFAULT_POOL_SIZE;
+    private String agentName = "agent";
+    private ExecutorService maintenanceExecutor;
+    private final MockMetrics metrics;
+
+    /**
+     * @param dispatcher used to register for agent lifecycle events.
+     * @param metrics    the agent-wide metrics, to which the mock processes run in the background are added.
+     */
+    public MockChrootPool(@NotNull EventDispatcher<AgentLifeCycleListener> dispatcher,
+                          @NotNull MockMetrics metrics) {
+        this.metrics = metrics;
+        dispatcher.addListener(this);
+    }
+
+    /**
+     * Read the pool size from the agent configuration.
+     *
+     * @param agent the agent that has just been initialized.
+     */
+    @Override
+    public synchronized void agentInitialized(@NotNull BuildAgent agent) {
+        String size = agent.getConfiguration().getConfigurationParameters().get(MockConstants.POOL_SIZE);
+        if (size != null && size.trim().length() > 0) {
+            try {
+                poolSize = Math.max(0, Integer.parseInt(size.trim()));
+            } catch (NumberFormatException e) {
+                Loggers.AGENT.warn("Invalid value for " + MockConstants.POOL_SIZE + ": " + size + ", using "
+                        + poolSize);
+            }
+        }
+        agentName = agent.getConfiguration().getName().replaceAll("[^A-Za-z0-9._-]", "_");
+        Loggers.AGENT.info("Mock chroot pool: " + poolSize + " instances per chroot");
+    }
+
+    /**
+     * Stop any background initialization that is still running.
+     */
+    @Override
+    public synchronized void agentShutdown() {
+        if (maintenanceExecutor != null) {
+            maintenanceExecutor.shutdownNow();
+            maintenanceExecutor = null;
+        }
+    }
+
+    /**
+     * Lease a chroot instance for a single build.
+     *
+     * @param chrootName      the name of the chroot config.
+     * @param configDirectory the directory containing the chroot config.
+     *
+     * @return the lease, which must be returned with {@link #release(Lease)}.
+     */
+    @NotNull
+    public synchronized Lease lease(@NotNull String chrootName, String configDirectory) {
+        if (poolSize <= 0) {
+            return new Lease(new Instance(chrootName, configDirectory, newTransientExtension()), false);
+        }
+
+        List<Instance> pooled = getInstances(chrootName, configDirectory);
+        for (Instance instance : pooled) {
+            if (instance.state == State.READY) {
+                instance.state = State.LEASED;
+                return new Lease(instance, true);
+            }
+        }
+
+        if (pooled.size() < poolSize) {
+            // First use of this chroot: take one instance ourselves and warm up the rest in the background
+            Instance instance = addInstance(pooled, chrootName, configDirectory, State.LEASED);
+            while (pooled.size() < poolSize) {
+                final Instance warming = addInstance(pooled, chrootName, configDirectory, State.WARMING);
+                getMaintenanceExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh(warming);
+                    }
+                });
+            }
+            return new Lease(instance, true);
+        }
+
+        for (Instance instance : pooled) {
+            if (instance.state == State.FAILED) {
+                instance.state = State.LEASED;
+                return new Lease(instance, true);
+            }
+        }
+
+        // Everything is busy: rather than wait, build in an instance of our own
+        return new Lease(new Instance(chrootName, configDirectory, newTransientExtension()), false);
+    }
+
+    /**
+     * Return a leased instance. Pooled instances are re-initialized in the background before being leased again;
+     * transient instances are removed.
+     *
+     * @param lease the lease to return.
+     */
+    public synchronized void release(@NotNull final Lease lease) {
+        final Instance instance = lease.instance;
+        releaseRootCache(lease.rootCache);
+        lease.rootCache = null;
+
+        if (lease.pooled) {
+            instance.state = State.REFRESHING;
+        }
+
+        getMaintenanceExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (lease.pooled) {
+                    refresh(instance);
+                } else {
+                    runMock(instance, "--clean");
+                }
+            }
+        });
+    }
+
+    /**
+     * Record that a leased instance is initialized from, and builds with, the root cache of the given config, so that
+     * the cache is not pruned until the lease is returned.
+     *
+     * @param lease the lease.
+     * @param hash  the config hash the instance is used with.
+     */
+    public synchronized void useRootCache(@NotNull Lease lease, @NotNull String hash) {
+        releaseRootCache(lease.rootCache);
+        lease.rootCache = MockConfig.getRootCacheName(lease.instance.configDirectory, lease.instance.chrootName, hash);
+        acquireRootCache(lease.rootCache);
+    }
+
+    /**
+     * Remove the unused root caches of earlier configs of a chroot config, at most once per
+     * {@link MockConstants#ROOT_CACHE_PRUNE_INTERVAL} ms, and only those older than
+     * {@link MockConstants#ROOT_CACHE_MAX_AGE} ms.
+     *
+     * @param chrootName      the name of the chroot config.
+     * @param configDirectory the directory containing the chroot config.
+     * @param hash            the hash of the current config, whose root cache is kept.
+     *
+     * @return the number of root caches removed.
+     */
+    public synchronized int pruneRootCaches(@NotNull String chrootName, String configDirectory, @NotNull String hash) {
+        String key = configDirectory + File.separator + chrootName;
+        Long last = lastPruned.get(key);
+        long now = System.currentTimeMillis();
+        if (last != null && now - last < MockConstants.ROOT_CACHE_PRUNE_INTERVAL) {
+            return 0;
+        }
+
+        lastPruned.put(key, now);
+        return MockConfig.pruneRootCaches(configDirectory, chrootName, hash,
+                new HashSet<String>(rootCachesInUse.keySet()), MockConstants.ROOT_CACHE_MAX_AGE);
+    }
+
+    private void acquireRootCache(String name) {
+        if (name == null) {
+            return;
+        }
+        Integer users = rootCachesInUse.get(name);
+        rootCachesInUse.put(name, users == null ? 1 : users + 1);
+    }
+
+    private void releaseRootCache(String name) {
+        Integer users = rootCachesInUse.get(name);
+        if (users == null) {
+            return;
+        }
+        if (users <= 1) {
+            rootCachesInUse.remove(name);
+        } else {
+            rootCachesInUse.put(name, users - 1);
+        }
+    }
+
+    /**
+     * Re-initialize a pooled instance from the root cache for its current config, and mark it as ready for leasing.
+     * If initialization fails, the instance is marked as failed, without a stored config hash, so that the build
+     * which leases it next initializes it itself.
+     *
+     * @param instance the instance to refresh.
+     */
+    private void refresh(Instance instance) {
+        // Until the init below has succeeded, the root is not a clean one for any config
+        MockConfig.deleteStoredHash(getChrootDirectory(instance));
+
+        String hash = null;
+        try {
+            hash = MockConfig.computeHash(instance.configDirectory, instance.chrootName);
+        } catch (IOException e) {
+            Loggers.AGENT.warn("Mock chroot pool: unable to hash config for " + instance.chrootName + ": "
+                    + e.getMessage());
+        }
+
+        String rootCache = hash != null
+                ? MockConfig.getRootCacheName(instance.configDirectory, instance.chrootName, hash) : null;
+        synchronized (this) {
+            acquireRootCache(rootCache);
+        }
+
+        boolean initialized;
+        try {
+            initialized = hash != null && runMock(instance, "--init",
+                    MockConfig.getRootCacheOption(instance.configDirectory, instance.chrootName, hash));
+        } finally {
+            synchronized (this) {
+                releaseRootCache(rootCache);
+            }
+        }
+
+        if (initialized) {
+            try {
+                MockConfig.writeStoredHash(getChrootDirectory(instance), hash);
+                pruneRootCaches(instance.chrootName, instance.configDirectory, hash);
+            } catch (IOException e) {
+                initialized = false;
+            }
+        }
+
+        if (!initialized) {
+            // Make sure a half-initialized root isn't mistaken for a usable one
+            runMock(instance, "--clean");
+        }
+
+        synchronized (this) {
+            instance.state = initialized ? State.READY : State.FAILED;
+        }
+    }
+
+    /**
+     * Run mock against the given instance.
+     *
+     * @param instance the chroot instance.
+     * @param action   the mock action, e.g. --init.
+     * @param options  any additional mock options.
+     *
+     * @return true if mock succeeded, false otherwise.
+     */
+    private boolean runMock(Instance instance, String action, String... options) {
+        String[] command = Util.concatArrays(new String[]{MockConstants.MOCK_EXECUTABLE,
+                action, "-r", instance.chrootName,
+                "--configdir=" + instance.configDirectory,
+                "--uniqueext=" + instance.uniqueExtension}, options);
+        metrics.processStarted();
+        try {
+            SystemCommandResult result = Util.runSystemCommand(command);
+            if (result.getReturnCode() != 0) {
+                Loggers.AGENT.warn("Mock chroot pool: " + Arrays.toString(command) + " failed: " + result.getOutput());
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            Loggers.AGENT.warn("Mock chroot pool: " + Arrays.toString(command) + " failed: " + e.getMessage());
+            return false;
+        } finally {
+            metrics.processFinished();
+        }
+    }
+
+    private List<Instance> getInstances(String chrootName, String configDirectory) {
+        String key = configDirectory + File.separator + chrootName;
+        List<Instance> pooled = instances.get(key);
+        if (pooled == null) {
+            pooled = new ArrayList<Instance>();
+            instances.put(key, pooled);
+        }
+        return pooled;
+    }
+
+    private Instance addInstance(List<Instance> pooled, String chrootName, String configDirectory, State state) {
+        Instance instance = new Instance(chrootName, configDirectory, "pool-" + agentName + "-"
+                + MockConfig.getDirectoryTag(configDirectory) + "-" + pooled.size());
+        instance.state = state;
+        pooled.add(instance);
+        return instance;
+    }
+
+    private static File getChrootDirectory(Instance instance) {
+        return new File(MockConstants.MOCK_CHROOT_DIR, instance.chrootName + "-" + instance.uniqueExtension);
+    }
+
+    private String newTransientExtension() {
+        return "tc-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    private synchronized ExecutorService getMaintenanceExecutor() {
+        if (maintenanceExecutor == null) {
+            maintenanceExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NotNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "mock-chroot-pool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return maintenanceExecutor;
+    }
+
+    /**
+     * A single chroot instance, i.e. one mock root directory.
+     */
+    private static class Instance {
+        private final String chrootName;
+        private final String configDirectory;
+        private final String uniqueExtension;
+        private State state;
+
+        private Instance(String chrootName, String configDirectory, String uniqueExtension) {
+            this.chrootName = chrootName;
+            this.configDirectory = configDirectory;
+            this.uniqueExtension = uniqueExtension;
+        }
+    }
+
+    /**
+     * A chroot instance leased to a single build.
+     */
+    public static class Lease {
+        private final Instance instance;
+        private final boolean pooled;
+        private String rootCache;
+
+        private Lease(Instance instance, boolean pooled) {
+            this.instance = instance;
+            this.pooled = pooled;
+        }
+
+        /**
+         * @return the suffix to pass to mock's --uniqueext option.
+         */
+        public String getUniqueExtension() {
+            return instance.uniqueExtension;
+        }
+
+        /**
+         * @return true if the instance belongs to the pool, false if it is transient.
+         */
+        public boolean isPooled() {
+            return pooled;
+        }
+
+        /**
+         * @return the root directory of the instance.
+         */
+        public File getChrootDirectory() {
+            return MockChrootPool.getChrootDirectory(instance);
+        }
+    }
+}
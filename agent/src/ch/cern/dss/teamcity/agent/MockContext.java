@@ -20,11 +20,17 @@
 
 package ch.cern.dss.teamcity.agent;
 
+import ch.cern.dss.teamcity.agent.util.MockConfig;
 import ch.cern.dss.teamcity.common.MockConstants;
+import ch.cern.dss.teamcity.common.RpmMacroSet;
 import jetbrains.buildServer.agent.BuildProgressLogger;
 import jetbrains.buildServer.log.Loggers;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -33,27 +39,223 @@ import java.util.Map;
  */
 public class MockContext {
     private final String chrootName;
+    private final String packageName;
+    private final RpmMacroSet macroSet;
     private final List<String> srpms;
     private final Map<String, String> runnerParameters;
     private final Map<String, String> environmentVariables;
     private final String artifactsPath;
+    private final File resultDirectory;
+    private String uniqueExtension;
+    private String configHash;
+    private MockLocalRepository buildRepository;
+    private MockLocalRepository publishRepository;
+    private final List<MockContext> upstream = new ArrayList<MockContext>();
+    private volatile List<File> publishedRpms = Collections.emptyList();
+    private volatile String manifestEntries = "";
+    private MockLogThrottle logThrottle = new MockLogThrottle(MockConstants.LOG_TAIL_MAX_LINES_PER_SECOND);
 
+    /**
+     * @param chrootName           the name of the chroot to build in.
+     * @param packageName          the name of the package being built, if the run builds several source RPMs as
+     *                             separate tasks, or null if this context covers the whole chroot.
+     * @param macroSet             the RPM macros to build with.
+     * @param srpms                the source RPMs to build.
+     * @param runnerParameters     the build runner parameters.
+     * @param artifactsPath        the directory the results are staged in, and published from as artifacts.
+     * @param environmentVariables the build environment variables.
+     * @param buildTempDirectory   the temp directory of the build, under which mock results are written.
+     */
     public MockContext(@NotNull String chrootName,
+                       String packageName,
+                       @NotNull RpmMacroSet macroSet,
                        @NotNull List<String> srpms,
                        @NotNull Map<String, String> runnerParameters,
                        @NotNull String artifactsPath,
-                       @NotNull Map<String, String> environmentVariables) {
+                       @NotNull Map<String, String> environmentVariables,
+                       @NotNull File buildTempDirectory) {
         this.chrootName = chrootName;
+        this.packageName = packageName;
+        this.macroSet = macroSet;
         this.runnerParameters = runnerParameters;
         this.environmentVariables = environmentVariables;
         this.srpms = srpms;
         this.artifactsPath = artifactsPath;
+
+        // Each build gets its own result directory (and a chroot instance leased from the pool), so that concurrent
+        // builds of the same chroot don't trample on each other
+        this.resultDirectory = new File(buildTempDirectory, "mock-results/" + getTaskName());
     }
 
     public String getChrootName() {
         return chrootName;
     }
 
+    /**
+     * @return the name of the package being built, or null if this context covers the whole chroot.
+     */
+    public String getPackageName() {
+        return packageName;
+    }
+
+    /**
+     * @return the name of the RPM macro set being built with, or null if the runner doesn't define a matrix.
+     */
+    public String getMacroSetName() {
+        return macroSet.getName();
+    }
+
+    /**
+     * @return a name identifying this build task in the build log: the chroot name, plus the macro set and package
+     *         names if set.
+     */
+    public String getTaskName() {
+        String taskName = getArtifactsDirectoryName();
+        return packageName == null ? taskName : taskName + "/" + packageName;
+    }
+
+    /**
+     * @return the directory, relative to the artifacts directory, to publish into: the chroot name, plus the macro
+     *         set name if the runner defines a matrix.
+     */
+    public String getArtifactsDirectoryName() {
+        return macroSet.getName() == null ? chrootName : chrootName + "/" + macroSet.getName();
+    }
+
+    /**
+     * @return the directory, relative to the task's artifacts directory, to publish the mock logs into.
+     */
+    public String getLogDirectoryName() {
+        return packageName == null ? "logs" : "logs/" + packageName;
+    }
+
+    /**
+     * @return the local repository of packages built earlier in this run which this package build-requires, or null.
+     */
+    public MockLocalRepository getBuildRepository() {
+        return buildRepository;
+    }
+
+    public void setBuildRepository(MockLocalRepository buildRepository) {
+        this.buildRepository = buildRepository;
+    }
+
+    /**
+     * @return the local repository to add the built packages to for later builds in this run, or null.
+     */
+    public MockLocalRepository getPublishRepository() {
+        return publishRepository;
+    }
+
+    public void setPublishRepository(MockLocalRepository publishRepository) {
+        this.publishRepository = publishRepository;
+    }
+
+    /**
+     * @return the limit on log lines passed on to the build log, shared by all builds in the same chroot.
+     */
+    public MockLogThrottle getLogThrottle() {
+        return logThrottle;
+    }
+
+    public void setLogThrottle(MockLogThrottle logThrottle) {
+        this.logThrottle = logThrottle;
+    }
+
+    /**
+     * @return the contexts of the packages built earlier in this run which this package build-requires.
+     */
+    public List<MockContext> getUpstream() {
+        return upstream;
+    }
+
+    public void addUpstream(MockContext context) {
+        upstream.add(context);
+    }
+
+    /**
+     * @return the RPMs this package published, once it has finished.
+     */
+    public List<File> getPublishedRpms() {
+        return publishedRpms;
+    }
+
+    public void setPublishedRpms(List<File> publishedRpms) {
+        this.publishedRpms = publishedRpms;
+    }
+
+    /**
+     * @return the manifest entries of the RPMs this task published, once it has finished.
+     */
+    public String getManifestEntries() {
+        return manifestEntries;
+    }
+
+    public void setManifestEntries(String manifestEntries) {
+        this.manifestEntries = manifestEntries;
+    }
+
+    /**
+     * @return the suffix passed to mock's --uniqueext option.
+     */
+    public String getUniqueExtension() {
+        return uniqueExtension;
+    }
+
+    /**
+     * @param uniqueExtension the --uniqueext suffix of the chroot instance leased for this build.
+     */
+    public void setUniqueExtension(String uniqueExtension) {
+        this.uniqueExtension = uniqueExtension;
+    }
+
+    /**
+     * @return the root directory mock builds this chroot in, i.e. /var/lib/mock/&lt;chroot&gt;-&lt;uniqueext&gt;.
+     */
+    public File getChrootDirectory() {
+        return new File(MockConstants.MOCK_CHROOT_DIR, chrootName + "-" + uniqueExtension);
+    }
+
+    /**
+     * @return the directory passed to mock's --resultdir option.
+     */
+    public File getResultDirectory() {
+        return resultDirectory;
+    }
+
+    /**
+     * @return the hash of this chroot's mock config and everything it includes, computed once per build.
+     * @throws IOException if the config cannot be read.
+     */
+    public synchronized String getConfigHash() throws IOException {
+        if (configHash == null) {
+            configHash = MockConfig.computeHash(getMockConfigDirectory(), chrootName);
+        }
+        return configHash;
+    }
+
+    /**
+     * @return true if all source RPMs are to be built in one chroot session with mock --chain.
+     */
+    public boolean isChainMode() {
+        return MockConstants.BUILD_MODE_CHAIN.equals(runnerParameters.get(MockConstants.BUILD_MODE));
+    }
+
+    /**
+     * @return the size limit in MB of the tmpfs to build on, or 0 to build on disk.
+     */
+    public long getTmpfsSizeMb() {
+        String size = runnerParameters.get(MockConstants.TMPFS_SIZE);
+        if (size == null || size.trim().length() == 0) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(size.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     public String getMockConfigDirectory() {
         return runnerParameters.get(MockConstants.CONFIG_DIR);
     }
@@ -67,9 +269,24 @@ public class MockContext {
     }
 
     public String getRpmMacros() {
-        // Environment variable can override runner params
-        return (environmentVariables.containsKey("RPMDEFS"))
-                ? environmentVariables.get("RPMDEFS")
-                : runnerParameters.get(MockConstants.RPM_MACROS);
+        return macroSet.getMacros();
+    }
+
+    /**
+     * @param key the runner parameter holding the timeout, in minutes.
+     *
+     * @return the timeout in milliseconds, or 0 if none was specified.
+     */
+    public long getTimeout(String key) {
+        String minutes = runnerParameters.get(key);
+        if (minutes == null || minutes.trim().length() == 0) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(minutes.trim()) * 60 * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 }
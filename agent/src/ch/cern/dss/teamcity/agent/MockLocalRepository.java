@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.agent;
+
+import ch.cern.dss.teamcity.common.SystemCommandResult;
+import ch.cern.dss.teamcity.common.Util;
+import jetbrains.buildServer.RunBuildException;
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A local yum repository of the RPMs built so far in one chroot during a single run. Packages which build-require
+ * other packages of the same run are built against it (mock --addrepo).
+ */
+public class MockLocalRepository {
+
+    private final File directory;
+    private boolean hasPackages = false;
+
+    /**
+     * @param directory the directory to hold the repository.
+     */
+    public MockLocalRepository(@NotNull File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the mock option which makes the repository available inside the chroot.
+     */
+    public String getAddRepoOption() {
+        return "--addrepo=file://" + directory.getAbsolutePath();
+    }
+
+    /**
+     * @return true if any packages have been added to the repository yet.
+     */
+    public synchronized boolean hasPackages() {
+        return hasPackages;
+    }
+
+    /**
+     * Add freshly built binary RPMs to the repository and regenerate its metadata. Source RPMs are skipped.
+     *
+     * @param resultDirectory the directory holding the built RPMs.
+     *
+     * @throws IOException
+     * @throws RunBuildException if the repository metadata cannot be generated.
+     */
+    public synchronized void addPackages(@NotNull File resultDirectory) throws IOException, RunBuildException {
+        directory.mkdirs();
+
+        File[] files = resultDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.getName().endsWith(".rpm") && !file.getName().endsWith(".src.rpm")) {
+                FileUtils.copyFile(file, new File(directory, file.getName()));
+            }
+        }
+
+        SystemCommandResult result;
+        try {
+            result = runCreaterepo("createrepo_c");
+        } catch (IOException e) {
+            // createrepo_c not installed, fall back to the python implementation
+            result = runCreaterepo("createrepo");
+        }
+
+        if (result.getReturnCode() != 0) {
+            throw new RunBuildException("Unable to create local repository: " + result.getOutput());
+        }
+        hasPackages = true;
+    }
+
+    private SystemCommandResult runCreaterepo(String executable) throws IOException, RunBuildException {
+        try {
+            return Util.runSystemCommand(new String[]{executable, "--update", directory.getAbsolutePath()});
+        } catch (InterruptedException e) {
+            throw new RunBuildException("Interrupted while creating local repository", e);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.agent;
+
+import ch.cern.dss.teamcity.common.OutputListener;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+
+/**
+ * Follows the log files mock writes into a result directory while it runs, and passes each new line on as it appears.
+ * The directory is polled, and each file is read from where the previous poll stopped, so nothing is read twice.
+ * <p/>
+ * The number of lines passed on is limited by a {@link MockLogThrottle}, which may be shared with other tailers. Lines
+ * longer than {@link #MAX_LINE_LENGTH} bytes are passed on in pieces, so that a log without newlines can't fill up the
+ * heap.
+ */
+public class MockLogTailer {
+
+    private static final long POLL_INTERVAL = 500;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private final File directory;
+    private final Set<String> fileNames;
+    private final OutputListener listener;
+    private final MockLogThrottle throttle;
+    private final Map<File, Long> positions = new HashMap<File, Long>();
+    private final Map<File, ByteArrayOutputStream> partialLines = new HashMap<File, ByteArrayOutputStream>();
+    private Thread thread;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param directory         the directory to follow files in, including its subdirectories.
+     * @param fileNames         the names of the files to follow.
+     * @param listener          receives each line, prefixed with the path of its file relative to the directory.
+     * @param throttle          limits the number of lines passed to the listener per second.
+     */
+    public MockLogTailer(@NotNull File directory,
+                         @NotNull String[] fileNames,
+                         @NotNull OutputListener listener,
+                         @NotNull MockLogThrottle throttle) {
+        this.directory = directory;
+        this.fileNames = new HashSet<String>(Arrays.asList(fileNames));
+        this.listener = listener;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Start following the files on a background thread.
+     *
+     * @param threadName the name of the background thread.
+     */
+    public synchronized void start(String threadName) {
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!stopped) {
+                    poll();
+                    try {
+                        Thread.sleep(POLL_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop following the files, after passing on whatever was written since the last poll.
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+
+        stopped = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+
+        poll();
+        for (Map.Entry<File, ByteArrayOutputStream> entry : partialLines.entrySet()) {
+            if (entry.getValue().size() > 0) {
+                emit(entry.getKey(), entry.getValue().toByteArray(), 0, entry.getValue().size());
+            }
+        }
+        throttle.flush(listener);
+    }
+
+    /**
+     * Read whatever has been appended to each followed file since the last poll.
+     */
+    private void poll() {
+        List<File> files = new ArrayList<File>();
+        findFiles(directory, files);
+
+        for (File file : files) {
+            try {
+                read(file);
+            } catch (IOException e) {
+                // The file may have been removed by mock in the meantime, try again on the next poll
+            }
+        }
+    }
+
+    private void findFiles(File parent, List<File> result) {
+        File[] children = parent.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                findFiles(child, result);
+            } else if (fileNames.contains(child.getName())) {
+                result.add(child);
+            }
+        }
+    }
+
+    private void read(File file) throws IOException {
+        Long position = positions.get(file);
+        if (position == null || file.length() < position) {
+            // New file, or truncated since the last poll
+            position = 0L;
+            partialLines.remove(file);
+        }
+        if (file.length() == position) {
+            return;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(position);
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int read;
+            while ((read = raf.read(buffer)) > 0) {
+                position += read;
+                splitLines(file, buffer, read);
+            }
+        } finally {
+            raf.close();
+        }
+        positions.put(file, position);
+    }
+
+    private void splitLines(File file, byte[] buffer, int length) {
+        ByteArrayOutputStream partial = partialLines.get(file);
+        int lineStart = 0;
+
+        for (int i = 0; i < length; i++) {
+            boolean newline = buffer[i] == '\n';
+            int pending = (partial != null ? partial.size() : 0) + i - lineStart;
+            if (!newline && pending < MAX_LINE_LENGTH) {
+                continue;
+            }
+            if (partial != null && partial.size() > 0) {
+                partial.write(buffer, lineStart, i - lineStart);
+                emit(file, partial.toByteArray(), 0, partial.size());
+                partial.reset();
+            } else {
+                emit(file, buffer, lineStart, i - lineStart);
+            }
+            // An over-long line goes on in the next piece, starting with this byte
+            lineStart = newline ? i + 1 : i;
+        }
+
+        if (lineStart < length) {
+            if (partial == null) {
+                partial = new ByteArrayOutputStream();
+                partialLines.put(file, partial);
+            }
+            partial.write(buffer, lineStart, length - lineStart);
+        }
+    }
+
+    private void emit(File file, byte[] bytes, int offset, int length) {
+        if (!throttle.acquire(listener)) {
+            return;
+        }
+
+        String path = directory.toURI().relativize(file.toURI()).getPath();
+        try {
+            listener.onOutputLine("[" + path + "] " + new String(bytes, offset, length, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.cern.dss.teamcity.agent;
+
+import ch.cern.dss.teamcity.common.OutputListener;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Limits the number of log lines per second passed on to the build log for one chroot, across all the builds (source
+ * RPMs and macro sets) running in it. Lines over the limit are dropped and counted, since the complete logs are
+ * published as artifacts anyway; the count is reported once the second is over. Dropped lines are counted per
+ * listener, so that each build's count is reported in its own part of the build log.
+ */
+public class MockLogThrottle {
+
+    private final int maxLinesPerSecond;
+    private long windowStart;
+    private int linesInWindow;
+    private final Map<OutputListener, Integer> suppressedLines = new IdentityHashMap<OutputListener, Integer>();
+
+    /**
+     * @param maxLinesPerSecond the maximum number of lines passed on per second.
+     */
+    public MockLogThrottle(int maxLinesPerSecond) {
+        this.maxLinesPerSecond = maxLinesPerSecond;
+    }
+
+    /**
+     * Decide whether another line may be passed on.
+     *
+     * @param listener the listener the line is for. If a new second has started, each listener is told how many of
+     *                 its lines were suppressed in the previous one.
+     *
+     * @return true if the line may be passed on, false if it must be dropped.
+     */
+    public synchronized boolean acquire(@NotNull OutputListener listener) {
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= 1000) {
+            for (Map.Entry<OutputListener, Integer> entry : suppressedLines.entrySet()) {
+                report(entry.getKey(), entry.getValue());
+            }
+            suppressedLines.clear();
+            windowStart = now;
+            linesInWindow = 0;
+        }
+
+        if (++linesInWindow > maxLinesPerSecond) {
+            Integer suppressed = suppressedLines.get(listener);
+            suppressedLines.put(listener, suppressed == null ? 1 : suppressed + 1);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Report the lines of a listener suppressed so far, if any.
+     *
+     * @param listener the listener, which receives the report.
+     */
+    public synchronized void flush(@NotNull OutputListener listener) {
+        Integer suppressed = suppressedLines.remove(listener);
+        if (suppressed != null) {
+            report(listener, suppressed);
+        }
+    }
+
+    private static void report(OutputListener listener, int suppressed) {
+        listener.onOutputLine("[... " + suppressed + " log lines suppressed, see the published logs ...]");
+    }
+}
@@ -0,0 +1,337 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.cern.dss.teamcity.agent;
+
+import ch.cern.dss.teamcity.agent.util.SystemResources;
+import ch.cern.dss.teamcity.common.MockConstants;
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live metrics of the mock builds on this agent, to see from outside how busy it is. They are exposed through JMX as
+ * {@link MockConstants#METRICS_OBJECT_NAME}, and if {@link MockConstants#METRICS_TEXTFILE} is set, written to that
+ * file in the Prometheus text format every {@link MockConstants#METRICS_INTERVAL} ms, e.g. for the textfile collector
+ * of the node exporter.
+ */
+public class MockMetrics extends AgentLifeCycleAdapter implements MockMetricsMBean {
+
+    /**
+     * Upper bounds of the phase latency histogram buckets, in seconds.
+     */
+    private static final double[] LATENCY_BUCKETS = {1, 5, 15, 30, 60, 120, 300, 600, 1200, 1800, 3600, 7200};
+
+    private final MockBuildScheduler scheduler;
+    private final MockBuildCache buildCache;
+    private final AtomicInteger mockProcesses = new AtomicInteger();
+    private final AtomicLong bytesPublished = new AtomicLong();
+    private final Map<String, Histogram> phaseLatencies = new TreeMap<String, Histogram>();
+    private ObjectName objectName;
+    private Timer timer;
+
+    /**
+     * @param dispatcher used to register for agent lifecycle events.
+     * @param scheduler  the scheduler, from which the queued and running builds are read.
+     * @param buildCache the build cache, from which the hits and misses are read.
+     */
+    public MockMetrics(@NotNull EventDispatcher<AgentLifeCycleListener> dispatcher,
+                       @NotNull MockBuildScheduler scheduler,
+                       @NotNull MockBuildCache buildCache) {
+        this.scheduler = scheduler;
+        this.buildCache = buildCache;
+        dispatcher.addListener(this);
+    }
+
+    /**
+     * Register the MBean, and start writing the textfile if one is configured.
+     *
+     * @param agent the agent that has just been initialized.
+     */
+    @Override
+    public synchronized void agentInitialized(@NotNull BuildAgent agent) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName(MockConstants.METRICS_OBJECT_NAME);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+            }
+        } catch (JMException e) {
+            Loggers.AGENT.warn("Unable to register mock metrics MBean: " + e.getMessage());
+            objectName = null;
+        }
+
+        String path = agent.getConfiguration().getConfigurationParameters().get(MockConstants.METRICS_TEXTFILE);
+        if (path != null && path.trim().length() > 0 && timer == null) {
+            final File textfile = new File(path.trim());
+            timer = new Timer("mock-metrics", true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        writeTextfile(textfile);
+                    } catch (IOException e) {
+                        Loggers.AGENT.warn("Unable to write mock metrics to " + textfile + ": " + e.getMessage());
+                    }
+                }
+            }, 0, MockConstants.METRICS_INTERVAL);
+            Loggers.AGENT.info("Writing mock metrics to " + textfile);
+        }
+    }
+
+    /**
+     * Stop writing the textfile and unregister the MBean.
+     */
+    @Override
+    public synchronized void agentShutdown() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                Loggers.AGENT.warn("Unable to unregister mock metrics MBean: " + e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Count a mock process as started. Must be matched by a call to {@link #processFinished()}.
+     */
+    public void processStarted() {
+        mockProcesses.incrementAndGet();
+    }
+
+    /**
+     * Count a mock process as finished.
+     */
+    public void processFinished() {
+        mockProcesses.decrementAndGet();
+    }
+
+    /**
+     * @param bytes the size of files that have just been published as artifacts.
+     */
+    public void addBytesPublished(long bytes) {
+        bytesPublished.addAndGet(bytes);
+    }
+
+    /**
+     * Record the time a build spent in one of its phases.
+     *
+     * @param phase  the name of the phase, e.g. "rebuild".
+     * @param millis the time spent in the phase.
+     */
+    public void observePhase(@NotNull String phase, long millis) {
+        Histogram histogram;
+        synchronized (phaseLatencies) {
+            histogram = phaseLatencies.get(phase);
+            if (histogram == null) {
+                histogram = new Histogram();
+                phaseLatencies.put(phase, histogram);
+            }
+        }
+        histogram.observe(millis / 1000.0);
+    }
+
+    @Override
+    public int getQueuedBuilds() {
+        return scheduler.getQueueDepth();
+    }
+
+    @Override
+    public int getRunningBuilds() {
+        return scheduler.getRunningCount();
+    }
+
+    @Override
+    public int getMaxConcurrentBuilds() {
+        return scheduler.getMaxConcurrentBuilds();
+    }
+
+    @Override
+    public int getMockProcesses() {
+        return mockProcesses.get();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return buildCache.getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return buildCache.getMisses();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = buildCache.getHits();
+        long lookups = hits + buildCache.getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getBytesPublished() {
+        return bytesPublished.get();
+    }
+
+    @Override
+    public long getChrootFreeBytes() {
+        return SystemResources.getUsableDiskSpace(new File(MockConstants.MOCK_CHROOT_DIR));
+    }
+
+    @Override
+    public String[] getPhaseLatencies() {
+        List<String> lines = new ArrayList<String>();
+        synchronized (phaseLatencies) {
+            for (Map.Entry<String, Histogram> entry : phaseLatencies.entrySet()) {
+                Histogram histogram = entry.getValue();
+                synchronized (histogram) {
+                    lines.add(entry.getKey() + ": " + histogram.count + " observations, mean "
+                            + String.format("%.1f", histogram.count == 0 ? 0 : histogram.sum / histogram.count)
+                            + "s, max " + String.format("%.1f", histogram.max) + "s");
+                }
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Write all metrics to a temporary file next to the textfile, then rename it into place, so that a collector never
+     * reads a partly written file.
+     *
+     * @param textfile the file to write.
+     * @throws IOException
+     */
+    private void writeTextfile(File textfile) throws IOException {
+        File temporary = new File(textfile.getPath() + ".tmp");
+        Writer writer = new FileWriter(temporary);
+        try {
+            writer.write(formatPrometheus());
+        } finally {
+            writer.close();
+        }
+
+        if (!temporary.renameTo(textfile)) {
+            temporary.delete();
+            throw new IOException("Unable to rename " + temporary + " to " + textfile);
+        }
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format.
+     */
+    protected String formatPrometheus() {
+        StringBuilder builder = new StringBuilder();
+        appendMetric(builder, "mock_builds_queued", "gauge",
+                "Mock builds waiting for a free slot or for resources.", getQueuedBuilds());
+        appendMetric(builder, "mock_builds_running", "gauge", "Mock builds currently running.", getRunningBuilds());
+        appendMetric(builder, "mock_builds_max_concurrent", "gauge",
+                "Maximum number of mock builds run concurrently.", getMaxConcurrentBuilds());
+        appendMetric(builder, "mock_processes", "gauge", "Mock processes currently running.", getMockProcesses());
+        appendMetric(builder, "mock_cache_hits_total", "counter", "Build cache hits.", getCacheHits());
+        appendMetric(builder, "mock_cache_misses_total", "counter", "Build cache misses.", getCacheMisses());
+        appendMetric(builder, "mock_published_bytes_total", "counter", "Bytes published as artifacts.",
+                getBytesPublished());
+
+        long freeBytes = getChrootFreeBytes();
+        if (freeBytes >= 0) {
+            appendMetric(builder, "mock_chroot_free_bytes", "gauge",
+                    "Usable space under " + MockConstants.MOCK_CHROOT_DIR + ".", freeBytes);
+        }
+
+        builder.append("# HELP mock_phase_duration_seconds Time spent by mock builds in each phase.\n");
+        builder.append("# TYPE mock_phase_duration_seconds histogram\n");
+        synchronized (phaseLatencies) {
+            for (Map.Entry<String, Histogram> entry : phaseLatencies.entrySet()) {
+                entry.getValue().append(builder, "mock_phase_duration_seconds", "phase=\"" + entry.getKey() + "\"");
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void appendMetric(StringBuilder builder, String name, String type, String help, Number value) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * A histogram with fixed buckets, as Prometheus expects them.
+     */
+    private static class Histogram {
+
+        private final long[] buckets = new long[LATENCY_BUCKETS.length];
+        private long count = 0;
+        private double sum = 0;
+        private double max = 0;
+
+        public synchronized void observe(double value) {
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                if (value <= LATENCY_BUCKETS[i]) {
+                    buckets[i]++;
+                    break;
+                }
+            }
+            count++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        /**
+         * Append the cumulative buckets, sum and count of this histogram.
+         */
+        public synchronized void append(StringBuilder builder, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                cumulative += buckets[i];
+                builder.append(name).append("_bucket{").append(labels).append(",le=\"")
+                        .append(LATENCY_BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            builder.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+            builder.append(name).append("_sum{").append(labels).append("} ").append(sum).append('\n');
+            builder.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.cern.dss.teamcity.agent;
+
+/**
+ * Management interface of {@link MockMetrics}, as exposed through JMX.
+ */
+public interface MockMetricsMBean {
+
+    /**
+     * @return the number of mock builds waiting for a free slot or for resources.
+     */
+    int getQueuedBuilds();
+
+    /**
+     * @return the number of mock builds currently running.
+     */
+    int getRunningBuilds();
+
+    /**
+     * @return the maximum number of mock builds that may run concurrently.
+     */
+    int getMaxConcurrentBuilds();
+
+    /**
+     * @return the number of mock processes currently running, including background chroot initialization.
+     */
+    int getMockProcesses();
+
+    /**
+     * @return the number of build cache hits since the agent started.
+     */
+    long getCacheHits();
+
+    /**
+     * @return the number of build cache misses since the agent started.
+     */
+    long getCacheMisses();
+
+    /**
+     * @return the fraction of build cache lookups which were hits, or 0 if there have been none.
+     */
+    double getCacheHitRatio();
+
+    /**
+     * @return the number of bytes published as artifacts since the agent started.
+     */
+    long getBytesPublished();
+
+    /**
+     * @return the usable space under the mock chroot directory in bytes, or -1 if it could not be determined.
+     */
+    long getChrootFreeBytes();
+
+    /**
+     * @return a summary of the latency of each build phase, one line per phase.
+     */
+    String[] getPhaseLatencies();
+}
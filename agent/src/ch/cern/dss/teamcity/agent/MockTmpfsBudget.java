@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.agent;
+
+import ch.cern.dss.teamcity.agent.util.SystemResources;
+import ch.cern.dss.teamcity.common.MockConstants;
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+/**
+ * Agent-wide budget of memory for chroots built on tmpfs. A chroot may only be built on tmpfs if its size limit fits
+ * into what is left of the budget; otherwise it is built on disk as usual.
+ * <p/>
+ * The budget is read from {@link MockConstants#TMPFS_BUDGET_MB}, and defaults to half of the physical memory.
+ */
+public class MockTmpfsBudget extends AgentLifeCycleAdapter {
+
+    private long budgetMb = -1;
+    private long reservedMb = 0;
+
+    /**
+     * @param dispatcher used to register for agent lifecycle events.
+     */
+    public MockTmpfsBudget(@NotNull EventDispatcher<AgentLifeCycleListener> dispatcher) {
+        dispatcher.addListener(this);
+    }
+
+    /**
+     * Read the budget from the agent configuration.
+     *
+     * @param agent the agent that has just been initialized.
+     */
+    @Override
+    public synchronized void agentInitialized(@NotNull BuildAgent agent) {
+        Map<String, String> parameters = agent.getConfiguration().getConfigurationParameters();
+
+        String budget = parameters.get(MockConstants.TMPFS_BUDGET_MB);
+        if (budget != null && budget.trim().length() > 0) {
+            try {
+                budgetMb = Math.max(0, Long.parseLong(budget.trim()));
+            } catch (NumberFormatException e) {
+                Loggers.AGENT.warn("Invalid value for " + MockConstants.TMPFS_BUDGET_MB + ": " + budget
+                        + ", using default");
+            }
+        }
+
+        Loggers.AGENT.info("Mock tmpfs budget: " + getBudgetMb() + " MB");
+    }
+
+    /**
+     * Reserve memory for a chroot on tmpfs.
+     *
+     * @param sizeMb the size limit of the tmpfs.
+     *
+     * @return true if the reservation fits into the budget, false if the chroot must be built on disk.
+     */
+    public synchronized boolean reserve(long sizeMb) {
+        if (reservedMb + sizeMb > getBudgetMb()) {
+            return false;
+        }
+        reservedMb += sizeMb;
+        return true;
+    }
+
+    /**
+     * Return a reservation to the budget.
+     *
+     * @param sizeMb the size limit of the tmpfs, as reserved.
+     */
+    public synchronized void release(long sizeMb) {
+        reservedMb = Math.max(0, reservedMb - sizeMb);
+    }
+
+    /**
+     * @return the memory currently reserved for chroots on tmpfs.
+     */
+    public synchronized long getReservedMb() {
+        return reservedMb;
+    }
+
+    /**
+     * @return the total memory that may be reserved for chroots on tmpfs.
+     */
+    public synchronized long getBudgetMb() {
+        if (budgetMb < 0) {
+            long totalMemory = SystemResources.getTotalMemory();
+            budgetMb = totalMemory > 0 ? totalMemory / (2 * 1024 * 1024) : 0;
+        }
+        return budgetMb;
+    }
+}
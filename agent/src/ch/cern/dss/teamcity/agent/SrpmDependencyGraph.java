@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.agent;
+
+import ch.cern.dss.teamcity.common.RpmHeader;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Build-order dependencies between the source RPMs of a single run, worked out from their names and BuildRequires.
+ * <p/>
+ * Source RPM headers don't list the binary packages they produce, so a BuildRequires is taken to refer to another
+ * source RPM of the run if it is that package's name or starts with its name and a dash (e.g. foo-devel from foo). The
+ * longest matching name wins. Cycles are broken by dropping the edges within them.
+ */
+public class SrpmDependencyGraph {
+
+    private final Map<String, String> names = new LinkedHashMap<String, String>();
+    private final Map<String, Set<String>> dependencies = new LinkedHashMap<String, Set<String>>();
+
+    /**
+     * @param srpms  the absolute paths to the source RPMs of the run.
+     * @param logger the build progress logger.
+     */
+    public SrpmDependencyGraph(@NotNull List<String> srpms, @NotNull BuildProgressLogger logger) {
+        Map<String, List<String>> requires = new HashMap<String, List<String>>();
+
+        for (String srpm : srpms) {
+            dependencies.put(srpm, new LinkedHashSet<String>());
+            try {
+                RpmHeader header = RpmHeader.read(new File(srpm));
+                names.put(srpm, header.getName());
+                requires.put(srpm, header.getRequires());
+            } catch (Exception e) {
+                logger.warning("Unable to read dependencies of " + srpm + ", building it without ordering: "
+                        + e.getMessage());
+            }
+        }
+
+        for (Map.Entry<String, List<String>> entry : requires.entrySet()) {
+            for (String requirement : entry.getValue()) {
+                String provider = findProvider(requirement);
+                if (provider != null && !provider.equals(entry.getKey())) {
+                    dependencies.get(entry.getKey()).add(provider);
+                }
+            }
+        }
+
+        breakCycles(logger);
+    }
+
+    /**
+     * @param srpm the path to a source RPM of the run.
+     *
+     * @return the source RPMs of the run which must be built before it.
+     */
+    @NotNull
+    public Set<String> getDependencies(@NotNull String srpm) {
+        Set<String> result = dependencies.get(srpm);
+        return result == null ? Collections.<String>emptySet() : result;
+    }
+
+    /**
+     * @return the source RPMs of the run in an order in which each comes after everything it depends on. Independent
+     *         source RPMs keep their original order.
+     */
+    @NotNull
+    public List<String> getBuildOrder() {
+        List<String> order = new ArrayList<String>();
+        Set<String> visited = new HashSet<String>();
+        for (String srpm : dependencies.keySet()) {
+            visit(srpm, visited, order);
+        }
+        return order;
+    }
+
+    private void visit(String srpm, Set<String> visited, List<String> order) {
+        if (!visited.add(srpm)) {
+            return;
+        }
+        for (String upstream : dependencies.get(srpm)) {
+            visit(upstream, visited, order);
+        }
+        order.add(srpm);
+    }
+
+    /**
+     * @return true if any source RPM of the run depends on another.
+     */
+    public boolean hasDependencies() {
+        for (Set<String> upstream : dependencies.values()) {
+            if (!upstream.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param requirement a BuildRequires entry.
+     *
+     * @return the source RPM of the run which produces the required package, or null if there is none.
+     */
+    private String findProvider(String requirement) {
+        String provider = null;
+        int longest = 0;
+
+        for (Map.Entry<String, String> entry : names.entrySet()) {
+            String name = entry.getValue();
+            if ((requirement.equals(name) || requirement.startsWith(name + "-")) && name.length() > longest) {
+                provider = entry.getKey();
+                longest = name.length();
+            }
+        }
+        return provider;
+    }
+
+    /**
+     * Remove the edges between source RPMs which depend on each other, directly or indirectly, so that the graph can
+     * be built in topological order.
+     *
+     * @param logger the build progress logger.
+     */
+    private void breakCycles(BuildProgressLogger logger) {
+        Map<String, Integer> unresolved = new HashMap<String, Integer>();
+        for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+            unresolved.put(entry.getKey(), entry.getValue().size());
+        }
+
+        // Kahn's algorithm: whatever can't be resolved is part of (or behind) a cycle
+        Deque<String> ready = new ArrayDeque<String>();
+        for (Map.Entry<String, Integer> entry : unresolved.entrySet()) {
+            if (entry.getValue() == 0) {
+                ready.add(entry.getKey());
+            }
+        }
+        while (!ready.isEmpty()) {
+            String resolved = ready.remove();
+            unresolved.remove(resolved);
+            for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+                if (entry.getValue().contains(resolved) && unresolved.containsKey(entry.getKey())) {
+                    int remaining = unresolved.get(entry.getKey()) - 1;
+                    unresolved.put(entry.getKey(), remaining);
+                    if (remaining == 0) {
+                        ready.add(entry.getKey());
+                    }
+                }
+            }
+        }
+
+        // Of the unresolved edges, drop only those which close a cycle
+        Map<String, String> cyclicEdges = new HashMap<String, String>();
+        for (String srpm : unresolved.keySet()) {
+            for (String upstream : dependencies.get(srpm)) {
+                if (unresolved.containsKey(upstream) && reaches(upstream, srpm, new HashSet<String>())) {
+                    cyclicEdges.put(srpm, upstream);
+                }
+            }
+        }
+        for (Map.Entry<String, String> edge : cyclicEdges.entrySet()) {
+            dependencies.get(edge.getKey()).remove(edge.getValue());
+            logger.warning("Circular build dependency between " + edge.getKey() + " and " + edge.getValue()
+                    + ", ignoring it");
+        }
+
+        if (!cyclicEdges.isEmpty()) {
+            breakCycles(logger);
+        }
+    }
+
+    /**
+     * @return true if the source RPM "from" depends, directly or indirectly, on "to".
+     */
+    private boolean reaches(String from, String to, Set<String> visited) {
+        if (from.equals(to)) {
+            return true;
+        }
+        if (!visited.add(from)) {
+            return false;
+        }
+        for (String upstream : dependencies.get(from)) {
+            if (reaches(upstream, to, visited)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.agent.util;
+
+import ch.cern.dss.teamcity.common.SystemCommandResult;
+import ch.cern.dss.teamcity.common.Util;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Moves file contents from one place to another with as little copying as possible. A hardlink is tried first, then a
+ * copy-on-write clone (reflink) for filesystems that support it, and finally an in-kernel channel transfer. Once a
+ * method has failed, it is not tried again by this instance, so a whole batch of files between the same two
+ * directories only pays for the failed attempts once.
+ * <p/>
+ * Instances are safe to use from several threads at once.
+ */
+public class FileTransfer {
+
+    /**
+     * The ways of transferring a file, from cheapest to most expensive.
+     */
+    public enum Method {
+        HARDLINK("hardlinked"),
+        REFLINK("reflinked"),
+        COPY("copied");
+
+        private final String description;
+
+        Method(String description) {
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    private volatile Method method = Method.HARDLINK;
+
+    /**
+     * Transfer a file, replacing the destination if it exists. The destination must not be modified in place
+     * afterwards, since it may share its storage with the source.
+     *
+     * @param source      the file to transfer.
+     * @param destination the file to create.
+     *
+     * @return the method that was used.
+     * @throws IOException if even a plain copy failed.
+     */
+    @NotNull
+    public Method transfer(@NotNull File source, @NotNull File destination) throws IOException {
+        Method current = method;
+
+        if (current == Method.HARDLINK) {
+            if (run(new String[]{"ln", "-f", source.getAbsolutePath(), destination.getAbsolutePath()})) {
+                return Method.HARDLINK;
+            }
+            // Most likely source and destination are on different filesystems
+            current = method = Method.REFLINK;
+        }
+
+        if (current == Method.REFLINK) {
+            if (run(new String[]{"cp", "-f", "--reflink=always", source.getAbsolutePath(),
+                    destination.getAbsolutePath()})) {
+                return Method.REFLINK;
+            }
+            method = Method.COPY;
+        }
+
+        copy(source, destination);
+        return Method.COPY;
+    }
+
+    /**
+     * Copy a file with FileChannel.transferTo(), which lets the kernel move the data without passing it through the
+     * JVM heap.
+     *
+     * @param source      the file to copy.
+     * @param destination the file to create.
+     *
+     * @throws IOException
+     */
+    private static void copy(File source, File destination) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(destination);
+            try {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                long size = inChannel.size();
+                long position = 0;
+                // transferTo() may move less than asked for, e.g. 2GB at most per call on Linux
+                while (position < size) {
+                    position += inChannel.transferTo(position, size - position, outChannel);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        destination.setLastModified(source.lastModified());
+    }
+
+    /**
+     * @param command the command to run.
+     *
+     * @return true if the command exited cleanly.
+     * @throws IOException if the thread was interrupted while waiting for the command.
+     */
+    private static boolean run(String[] command) throws IOException {
+        try {
+            SystemCommandResult result = Util.runSystemCommand(command);
+            return result.getReturnCode() == 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transferring file");
+        }
+    }
+}
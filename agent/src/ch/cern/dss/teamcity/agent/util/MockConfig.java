@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.agent.util;
+
+import ch.cern.dss.teamcity.common.MockConstants;
+import ch.cern.dss.teamcity.common.Util;
+import jetbrains.buildServer.util.FileUtil;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Methods for tracking whether an initialized chroot is still up to date with its mock config.
+ * <p/>
+ * The config is hashed together with everything it includes and with site-defaults.cfg. The hash is stored in the
+ * chroot instance when it is initialized, and also keys the root cache tarball that mock restores the chroot from.
+ * The stored hash is removed as soon as a build starts using the instance, so it only ever marks a clean root.
+ */
+public class MockConfig {
+
+    private static final Pattern INCLUDE_PATTERN = Pattern.compile("include\\(\\s*['\"]([^'\"]+)['\"]\\s*\\)");
+
+    /**
+     * Compute the SHA-256 hash of a chroot config and the files it includes.
+     *
+     * @param configDirectory the mock config directory.
+     * @param chrootName      the name of the chroot config, without the .cfg extension.
+     *
+     * @return the hex-encoded hash.
+     * @throws IOException if the config or one of its includes cannot be read.
+     */
+    public static String computeHash(String configDirectory, String chrootName) throws IOException {
+        Set<File> files = new LinkedHashSet<File>();
+        File siteDefaults = new File(configDirectory, "site-defaults.cfg");
+        if (siteDefaults.exists()) {
+            files.add(siteDefaults);
+        }
+        collectIncludes(new File(configDirectory, chrootName + ".cfg"), new File(configDirectory), files);
+
+        MessageDigest digest = Util.newSha256Digest();
+        for (File file : files) {
+            digest.update(file.getName().getBytes("UTF-8"));
+            digest.update(FileUtils.readFileToString(file, "UTF-8").getBytes("UTF-8"));
+        }
+        return Util.toHexString(digest.digest());
+    }
+
+    /**
+     * @param chrootDirectory the root directory of a chroot instance.
+     *
+     * @return the config hash stored when the instance was initialized, or null if there is none.
+     */
+    public static String readStoredHash(File chrootDirectory) {
+        File hashFile = new File(chrootDirectory, MockConstants.CONFIG_HASH_FILE);
+        if (!hashFile.exists()) {
+            return null;
+        }
+
+        try {
+            return FileUtils.readFileToString(hashFile, "UTF-8").trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Record the config hash that a chroot instance was initialized with.
+     *
+     * @param chrootDirectory the root directory of the chroot instance.
+     * @param hash            the config hash.
+     *
+     * @throws IOException
+     */
+    public static void writeStoredHash(File chrootDirectory, String hash) throws IOException {
+        FileUtil.writeFile(new File(chrootDirectory, MockConstants.CONFIG_HASH_FILE), hash, "UTF-8");
+    }
+
+    /**
+     * Forget the config hash of a chroot instance, once its root is about to be built in or re-initialized.
+     *
+     * @param chrootDirectory the root directory of the chroot instance.
+     */
+    public static void deleteStoredHash(File chrootDirectory) {
+        FileUtils.deleteQuietly(new File(chrootDirectory, MockConstants.CONFIG_HASH_FILE));
+    }
+
+    /**
+     * @param configDirectory the mock config directory.
+     *
+     * @return a short tag identifying the config directory, to tell apart the instances of chroots which have the same
+     *         name in different config directories.
+     */
+    public static String getDirectoryTag(String configDirectory) {
+        String path = configDirectory != null ? new File(configDirectory).getAbsolutePath() : "";
+        try {
+            return Util.toHexString(Util.newSha256Digest().digest(path.getBytes("UTF-8"))).substring(0, 8);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param configDirectory the mock config directory.
+     * @param chrootName      the name of the chroot config.
+     * @param hash            the config hash.
+     *
+     * @return the name of the root cache directory for this exact config, of the form
+     *         &lt;chroot&gt;-&lt;config directory tag&gt;-&lt;first 16 digits of the hash&gt;.
+     */
+    public static String getRootCacheName(String configDirectory, String chrootName, String hash) {
+        return chrootName + "-" + getDirectoryTag(configDirectory) + "-" + hash.substring(0, 16);
+    }
+
+    /**
+     * @param configDirectory the mock config directory.
+     * @param chrootName      the name of the chroot config.
+     * @param hash            the config hash.
+     *
+     * @return the mock option which points the root_cache plugin at the tarball for this exact config, so that a
+     *         changed config never warm-starts from a stale root.
+     */
+    public static String getRootCacheOption(String configDirectory, String chrootName, String hash) {
+        return "--plugin-option=root_cache:dir=" + MockConstants.ROOT_CACHE_DIR + "/"
+                + getRootCacheName(configDirectory, chrootName, hash) + "/";
+    }
+
+    /**
+     * Recursively find the files included by a mock config.
+     *
+     * @param file            the config file.
+     * @param configDirectory the directory relative includes are resolved against.
+     * @param files           the set to add the config and its includes to.
+     *
+     * @throws IOException
+     */
+    private static void collectIncludes(File file, File configDirectory, Set<File> files) throws IOException {
+        if (!files.add(file)) {
+            return;
+        }
+
+        Matcher matcher = INCLUDE_PATTERN.matcher(FileUtils.readFileToString(file, "UTF-8"));
+        while (matcher.find()) {
+            File include = new File(matcher.group(1));
+            if (!include.isAbsolute()) {
+                include = new File(configDirectory, matcher.group(1));
+            }
+            collectIncludes(include, configDirectory, files);
+        }
+    }
+
+    /**
+     * Remove the root caches left behind by earlier configs of a chroot in a config directory, so that each config
+     * change doesn't leak a root tarball. Caches of the same chroot name in other config directories are left alone,
+     * and so are caches which are in use or which were written recently, since a build which hashed the config just
+     * before it changed may still be about to restore from them.
+     *
+     * @param configDirectory the mock config directory.
+     * @param chrootName      the name of the chroot config.
+     * @param hash            the hash of the current config, whose root cache is kept.
+     * @param inUse           the names of the root caches in use, which are kept.
+     * @param maxAge          the age in milliseconds above which an unused root cache is removed.
+     *
+     * @return the number of root caches removed.
+     */
+    public static int pruneRootCaches(String configDirectory, String chrootName, String hash,
+                                      final Set<String> inUse, long maxAge) {
+        final Pattern stale = Pattern.compile(Pattern.quote(chrootName + "-" + getDirectoryTag(configDirectory))
+                + "-[0-9a-f]{16}");
+        final String current = getRootCacheName(configDirectory, chrootName, hash);
+
+        File[] caches = new File(MockConstants.ROOT_CACHE_DIR).listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return !name.equals(current) && !inUse.contains(name) && stale.matcher(name).matches();
+            }
+        });
+
+        int removed = 0;
+        if (caches != null) {
+            long now = System.currentTimeMillis();
+            for (File cache : caches) {
+                if (now - cache.lastModified() > maxAge && FileUtils.deleteQuietly(cache)) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+}
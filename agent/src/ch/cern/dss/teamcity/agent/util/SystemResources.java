@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.agent.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * A set of methods for querying the resources of the host the agent is running on. Values are read from /proc, since
+ * mock is only available on Linux.
+ */
+public class SystemResources {
+
+    private static final String MEMINFO = "/proc/meminfo";
+    private static final String LOADAVG = "/proc/loadavg";
+
+    /**
+     * @return the number of processors available to the agent JVM.
+     */
+    public static int getAvailableProcessors() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the total physical memory of the host in bytes, or -1 if it could not be determined.
+     */
+    public static long getTotalMemory() {
+        return readMeminfoField("MemTotal");
+    }
+
+    /**
+     * @return the memory available for starting new processes in bytes, or -1 if it could not be determined.
+     */
+    public static long getAvailableMemory() {
+        long available = readMeminfoField("MemAvailable");
+        if (available >= 0) {
+            return available;
+        }
+
+        // Kernels before 3.14 don't estimate it, approximate with free memory plus the page cache
+        long free = readMeminfoField("MemFree");
+        long cached = readMeminfoField("Cached");
+        return free >= 0 && cached >= 0 ? free + cached : -1;
+    }
+
+    /**
+     * @param directory a directory on the filesystem to query.
+     *
+     * @return the space usable by the agent on the filesystem holding the directory in bytes, or -1 if it could not
+     *         be determined.
+     */
+    public static long getUsableDiskSpace(File directory) {
+        long usable = directory.getUsableSpace();
+        // 0 is also returned when the directory does not exist
+        return usable > 0 || directory.exists() ? usable : -1;
+    }
+
+    /**
+     * @return the one-minute load average of the host, or -1 if it could not be determined.
+     */
+    public static double getLoadAverage() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(LOADAVG));
+            String line = reader.readLine();
+            // Format is "0.52 0.58 0.59 1/467 12345"
+            return line != null ? Double.parseDouble(line.trim().split("\\s+")[0]) : -1;
+        } catch (IOException e) {
+            return -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a single field from /proc/meminfo.
+     *
+     * @param field the name of the field, without the trailing colon.
+     *
+     * @return the value of the field in bytes, or -1 if it could not be read.
+     */
+    protected static long readMeminfoField(String field) {
+        File meminfo = new File(MEMINFO);
+        if (!meminfo.canRead()) {
+            return -1;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(meminfo));
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(field + ":")) {
+                    // Format is "MemTotal:       16318412 kB"
+                    String[] parts = line.substring(field.length() + 1).trim().split("\\s+");
+                    return Long.parseLong(parts[0]) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            return -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        return -1;
+    }
+}
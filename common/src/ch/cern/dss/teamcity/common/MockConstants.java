@@ -30,12 +30,61 @@ public interface MockConstants {
     String SOURCE_RPMS = "mock.srpms";
     String SOURCE_RPM_DIR = "mock.srpm.dir";
     String RPM_MACROS = "mock.rpmdefs";
+    String PRIORITY = "mock.priority";
+    String FAIL_FAST = "mock.failFast";
+    String INIT_TIMEOUT = "mock.timeout.init";
+    String REBUILD_TIMEOUT = "mock.timeout.rebuild";
+    String PUBLISH_TIMEOUT = "mock.timeout.publish";
+    String NO_OUTPUT_TIMEOUT = "mock.timeout.noOutput";
+    String BUILD_MODE = "mock.buildMode";
+    String BUILD_MODE_PARALLEL = "parallel";
+    String BUILD_MODE_CHAIN = "chain";
+    String TMPFS_SIZE = "mock.tmpfs.sizeMb";
 
     String MOCK_EXECUTABLE = "/usr/bin/mock";
     String DEFAULT_CONFIG_DIR = "/etc/mock";
     String MOCK_CHROOT_DIR = "/var/lib/mock";
+    String ROOT_CACHE_DIR = "/var/cache/mock/teamcity-root-cache";
+    Integer ROOT_CACHE_PRUNE_INTERVAL = 3600000;
+    Integer ROOT_CACHE_MAX_AGE = 86400000;
+    String CONFIG_HASH_FILE = ".teamcity-config-hash";
     Integer MAX_CONCURRENT_MOCK_BUILDS = 4;
+    Integer OUTPUT_TAIL_LINES = 200;
+    Integer PUBLISH_THREADS = 4;
+    Integer LOG_TAIL_MAX_LINES_PER_SECOND = 50;
+    String[] MOCK_LOG_FILES = {"build.log", "root.log", "state.log"};
+    String LOG_SUMMARY_FILE = "mock-summary.txt";
+    String ARTIFACTS_STAGING_DIR = "mock-artifacts";
+
+    // Agent-wide scheduler settings, read from the agent configuration (buildAgent.properties)
+    String SCHEDULER_MAX_CONCURRENT_BUILDS = "mock.scheduler.maxConcurrentBuilds";
+    String SCHEDULER_QUEUE_POLICY = "mock.scheduler.queuePolicy";
+    String SCHEDULER_MEMORY_PER_BUILD_MB = "mock.scheduler.memoryPerBuildMb";
+    String SCHEDULER_AUTO = "auto";
+    String SCHEDULER_QUEUE_FIFO = "fifo";
+    String SCHEDULER_QUEUE_PRIORITY = "priority";
+    Integer DEFAULT_MEMORY_PER_BUILD_MB = 2048;
+    String SCHEDULER_MIN_FREE_MEMORY_MB = "mock.scheduler.minFreeMemoryMb";
+    String SCHEDULER_MIN_FREE_DISK_MB = "mock.scheduler.minFreeDiskMb";
+    String SCHEDULER_MAX_LOAD_PER_CORE = "mock.scheduler.maxLoadPerCore";
+    Integer DEFAULT_MIN_FREE_DISK_MB = 10240;
+    Double DEFAULT_MAX_LOAD_PER_CORE = 2.0;
+    Integer ADMISSION_POLL_INTERVAL = 5000;
+    Integer ADMISSION_SETTLE_TIME = 60000;
+    String POOL_SIZE = "mock.pool.size";
+    Integer DEFAULT_POOL_SIZE = 1;
+    String CACHE_DIR = "mock.cache.dir";
+    String CACHE_MAX_SIZE_MB = "mock.cache.maxSizeMb";
+    String TMPFS_BUDGET_MB = "mock.tmpfs.budgetMb";
+    String METRICS_TEXTFILE = "mock.metrics.textfile";
+    String METRICS_OBJECT_NAME = "ch.cern.dss.teamcity:type=MockRunner";
+    Integer METRICS_INTERVAL = 15000;
+    Integer DISK_USAGE_TIMEOUT = 30000;
 
     String TAB_TITLE = "Mock Log Report";
     String TAB_ID = "mockLogReport";
+    Integer REPORT_CACHE_SIZE = 50;
+    Integer REPORT_CACHE_MAX_LINES = 200000;
+    String REPORT_CONTROLLER_PATH = "/mockLogReport.html";
+    Integer REPORT_PAGE_SIZE = 50;
 }
@@ -0,0 +1,428 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.cern.dss.teamcity.common;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The errors and warnings found in the mock logs of a single build, each with the two lines above and below it for
+ * context. The agent analyzes the logs right after the build and publishes the summary next to them as
+ * {@link MockConstants#LOG_SUMMARY_FILE}, so that the server can show the report without reading the logs itself.
+ * <p/>
+ * The summary file is plain UTF-8 text, one record per line:
+ * <pre>
+ * # mock log summary 1
+ * log build.log 1 2
+ * cluster 120
+ * context ...
+ * error ...
+ * </pre>
+ * A "log" record gives the name, error count and warning count of a log, and is followed by its clusters. A "cluster"
+ * record gives the (zero-based) number of the first line of a cluster, and is followed by its consecutive lines.
+ */
+public class MockLogSummary {
+
+    public static final String ERROR = "error";
+    public static final String WARNING = "warning";
+    public static final String CONTEXT = "context";
+
+    private static final String HEADER = "# mock log summary 1";
+    private static final int CONTEXT_LINES = 2;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private final Map<String, Log> logs = new LinkedHashMap<String, Log>();
+
+    /**
+     * Analyze the mock logs in a log directory. Each log is read once, in chunks, so that memory use depends on the
+     * number of errors and warnings found rather than on the size of the logs.
+     *
+     * @param logDirectory the directory holding build.log, root.log and state.log. Missing logs are skipped.
+     *
+     * @return the summary of the logs.
+     * @throws IOException
+     */
+    public static MockLogSummary analyze(File logDirectory) throws IOException {
+        MockLogSummary summary = new MockLogSummary();
+        for (String name : MockConstants.MOCK_LOG_FILES) {
+            File logFile = new File(logDirectory, name);
+            if (logFile.isFile()) {
+                Reader reader = new InputStreamReader(new FileInputStream(logFile), "UTF-8");
+                try {
+                    summary.logs.put(name, analyzeLog(name, reader));
+                } finally {
+                    reader.close();
+                }
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Read a summary file written by {@link #write(File)}.
+     *
+     * @param file the summary file.
+     *
+     * @return the summary.
+     * @throws IOException if the file can't be read or is not a summary file.
+     */
+    public static MockLogSummary read(File file) throws IOException {
+        MockLogSummary summary = new MockLogSummary();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Not a mock log summary: " + file);
+            }
+
+            Log log = null;
+            Cluster cluster = null;
+            String record;
+            while ((record = reader.readLine()) != null) {
+                int space = record.indexOf(' ');
+                String type = space < 0 ? record : record.substring(0, space);
+                String value = space < 0 ? "" : record.substring(space + 1);
+
+                try {
+                    if (type.equals("log")) {
+                        String[] fields = value.split(" ");
+                        log = new Log(fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+                        summary.logs.put(log.name, log);
+                        cluster = null;
+                    } else if (type.equals("cluster") && log != null) {
+                        cluster = new Cluster(Integer.parseInt(value));
+                        log.clusters.add(cluster);
+                    } else if (cluster != null) {
+                        cluster.lines.add(new Line(type, unescape(value)));
+                    } else {
+                        throw new IOException("Unexpected record in " + file + ": " + record);
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException("Invalid record in " + file + ": " + record);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return summary;
+    }
+
+    /**
+     * Write this summary to a file.
+     *
+     * @param file the file to write.
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write(HEADER + "\n");
+            for (Log log : logs.values()) {
+                writer.write("log " + log.name + " " + log.errors + " " + log.warnings + "\n");
+                for (Cluster cluster : log.clusters) {
+                    writer.write("cluster " + cluster.firstLine + "\n");
+                    for (Line line : cluster.lines) {
+                        writer.write(line.kind + " " + escape(line.text) + "\n");
+                    }
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return a map of log file names : log summaries, in the order the logs were analyzed.
+     */
+    public Map<String, Log> getLogs() {
+        return logs;
+    }
+
+    /**
+     * @return the number of error lines across all logs.
+     */
+    public int getErrors() {
+        int errors = 0;
+        for (Log log : logs.values()) {
+            errors += log.errors;
+        }
+        return errors;
+    }
+
+    /**
+     * @return the number of warning lines across all logs.
+     */
+    public int getWarnings() {
+        int warnings = 0;
+        for (Log log : logs.values()) {
+            warnings += log.warnings;
+        }
+        return warnings;
+    }
+
+    /**
+     * Look for errors and warnings in a log, and cluster them with the lines around them.
+     *
+     * @param name   the name of the log file.
+     * @param reader the contents of the log file.
+     *
+     * @return the summary of the log.
+     * @throws IOException
+     */
+    private static Log analyzeLog(String name, Reader reader) throws IOException {
+        LogScanner scanner = new LogScanner(name);
+        char[] buffer = new char[CHUNK_SIZE];
+        StringBuilder line = new StringBuilder();
+        boolean empty = true;
+        int read;
+
+        while ((read = reader.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+                if (c == '\n') {
+                    scanner.scanLine(line);
+                    line.setLength(0);
+                } else if (line.length() < MAX_LINE_LENGTH) {
+                    line.append(c);
+                }
+            }
+            empty = false;
+        }
+
+        if (line.length() > 0) {
+            scanner.scanLine(line);
+        }
+
+        if (empty) {
+            Log log = new Log(name, 0, 1);
+            Cluster cluster = new Cluster(1);
+            cluster.lines.add(new Line(WARNING, "Log file is empty"));
+            log.clusters.add(cluster);
+            return log;
+        }
+        return scanner.log;
+    }
+
+    /**
+     * Work out whether a line is an error or a warning, i.e. its first word is "error" or "warning" in any case, and it
+     * goes on after that word.
+     *
+     * @param line the line to check.
+     *
+     * @return {@link #ERROR}, {@link #WARNING}, or null for any other line.
+     */
+    private static String getMarker(CharSequence line) {
+        int start = 0;
+        while (start < line.length() && !isWordCharacter(line.charAt(start))) {
+            start++;
+        }
+
+        if (isMarker(line, start, WARNING)) {
+            return WARNING;
+        }
+        if (isMarker(line, start, ERROR)) {
+            return ERROR;
+        }
+        return null;
+    }
+
+    private static boolean isMarker(CharSequence line, int start, String marker) {
+        int end = start + marker.length();
+        if (end >= line.length() || isWordCharacter(line.charAt(end))) {
+            return false;
+        }
+
+        for (int i = 0; i < marker.length(); i++) {
+            char c = line.charAt(start + i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != marker.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWordCharacter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\r", "\\r");
+    }
+
+    private static String unescape(String text) {
+        StringBuilder builder = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                c = text.charAt(++i);
+                builder.append(c == 'r' ? '\r' : c);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Clusters the lines of a log as they are read. Only the last {@link #CONTEXT_LINES} lines are kept, so that they
+     * can be added as context if the next line is an error or warning.
+     */
+    private static class LogScanner {
+
+        private final Log log;
+        private final String[] previousLines = new String[CONTEXT_LINES];
+        private int lineNo = 0;
+        private Cluster cluster = null;
+        private int clusterEnd = -1;
+        private int contextAfter = 0;
+
+        public LogScanner(String name) {
+            this.log = new Log(name, 0, 0);
+        }
+
+        /**
+         * @param line the next line of the log, without the line separator.
+         */
+        public void scanLine(CharSequence line) {
+            // Lines of logs with Windows line separators
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') {
+                length--;
+            }
+            String text = line.subSequence(0, length).toString();
+            String marker = getMarker(text);
+            int i = lineNo++;
+
+            if (marker != null) {
+                if (marker.equals(ERROR)) {
+                    log.errors++;
+                } else {
+                    log.warnings++;
+                }
+
+                // Start a new cluster unless the context before this line joins up with the current one
+                int first = Math.max(0, i - CONTEXT_LINES);
+                if (cluster == null || clusterEnd < first - 1) {
+                    cluster = new Cluster(first);
+                    log.clusters.add(cluster);
+                    clusterEnd = first - 1;
+                }
+                for (int j = clusterEnd + 1; j < i; j++) {
+                    cluster.lines.add(new Line(CONTEXT, previousLines[j % CONTEXT_LINES]));
+                }
+                cluster.lines.add(new Line(marker, text));
+                clusterEnd = i;
+                contextAfter = CONTEXT_LINES;
+            } else if (contextAfter > 0) {
+                cluster.lines.add(new Line(CONTEXT, text));
+                clusterEnd = i;
+                contextAfter--;
+            }
+
+            previousLines[i % CONTEXT_LINES] = text;
+        }
+    }
+
+    /**
+     * The errors and warnings found in a single log.
+     */
+    public static class Log {
+
+        private final String name;
+        private int errors;
+        private int warnings;
+        private final List<Cluster> clusters = new ArrayList<Cluster>();
+
+        public Log(String name, int errors, int warnings) {
+            this.name = name;
+            this.errors = errors;
+            this.warnings = warnings;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+
+        public int getWarnings() {
+            return warnings;
+        }
+
+        public List<Cluster> getClusters() {
+            return clusters;
+        }
+    }
+
+    /**
+     * A run of consecutive lines holding one or more errors or warnings and their context.
+     */
+    public static class Cluster {
+
+        private final int firstLine;
+        private final List<Line> lines = new ArrayList<Line>();
+
+        public Cluster(int firstLine) {
+            this.firstLine = firstLine;
+        }
+
+        /**
+         * @return the zero-based number of the first line of the cluster in the log.
+         */
+        public int getFirstLine() {
+            return firstLine;
+        }
+
+        public List<Line> getLines() {
+            return lines;
+        }
+    }
+
+    /**
+     * A line of a cluster: its kind (error, warning or context) and text.
+     */
+    public static class Line {
+
+        private final String kind;
+        private final String text;
+
+        public Line(String kind, String text) {
+            this.kind = kind;
+            this.text = text;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The metadata of a binary or source RPM, read straight from the lead, signature and header sections at the start of
+ * the file. The payload is never read, so this is cheap even for very large packages.
+ * <p/>
+ * See http://rpm.org/devel_doc/file_format.html for the layout. All integers are big-endian.
+ */
+public class RpmHeader {
+
+    public static final int TAG_NAME = 1000;
+    public static final int TAG_VERSION = 1001;
+    public static final int TAG_RELEASE = 1002;
+    public static final int TAG_EPOCH = 1003;
+    public static final int TAG_SIZE = 1009;
+    public static final int TAG_ARCH = 1022;
+    public static final int TAG_FILEDIGESTS = 1035;
+    public static final int TAG_PROVIDENAME = 1047;
+    public static final int TAG_REQUIRENAME = 1049;
+    public static final int TAG_LONGSIZE = 5009;
+    public static final int TAG_FILEDIGESTALGO = 5011;
+    public static final int TAG_PAYLOADDIGEST = 5092;
+    public static final int SIGTAG_SHA256 = 273;
+
+    private static final int LEAD_SIZE = 96;
+    private static final int LEAD_MAGIC = 0xedabeedb;
+    private static final int HEADER_MAGIC = 0x8eade8;
+    private static final int HEADER_INTRO_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int MAX_HEADER_SIZE = 256 * 1024 * 1024;
+
+    private static final int TYPE_INT16 = 3;
+    private static final int TYPE_INT32 = 4;
+    private static final int TYPE_INT64 = 5;
+    private static final int TYPE_STRING = 6;
+    private static final int TYPE_STRING_ARRAY = 8;
+    private static final int TYPE_I18NSTRING = 9;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final boolean sourcePackage;
+    private final Section signature;
+    private final Section header;
+
+    private RpmHeader(boolean sourcePackage, Section signature, Section header) {
+        this.sourcePackage = sourcePackage;
+        this.signature = signature;
+        this.header = header;
+    }
+
+    /**
+     * Read the metadata of an RPM file.
+     *
+     * @param file the binary or source RPM.
+     *
+     * @return the parsed header.
+     * @throws IOException if the file cannot be read or is not a valid RPM.
+     */
+    public static RpmHeader read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+
+            ByteBuffer lead = readFully(channel, 0, LEAD_SIZE, file);
+            if (lead.getInt(0) != LEAD_MAGIC) {
+                throw new IOException("Not an RPM file: " + file);
+            }
+            boolean sourcePackage = lead.getShort(6) == 1;
+
+            Section signature = readSection(channel, LEAD_SIZE, file);
+            // The signature section is padded to a multiple of 8 bytes
+            long position = LEAD_SIZE + signature.getLength();
+            position = (position + 7) & ~7L;
+            Section header = readSection(channel, position, file);
+
+            return new RpmHeader(sourcePackage, signature, header);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static Section readSection(FileChannel channel, long position, File file) throws IOException {
+        ByteBuffer intro = readFully(channel, position, HEADER_INTRO_SIZE, file);
+        if ((intro.getInt(0) >>> 8) != HEADER_MAGIC) {
+            throw new IOException("Corrupt RPM header in " + file + " at offset " + position);
+        }
+
+        int count = intro.getInt(8);
+        int storeSize = intro.getInt(12);
+        if (count < 0 || storeSize < 0 || (long) count * INDEX_ENTRY_SIZE + storeSize > MAX_HEADER_SIZE) {
+            throw new IOException("Corrupt RPM header in " + file + ": " + count + " entries, " + storeSize
+                    + " bytes of data");
+        }
+
+        ByteBuffer body = readFully(channel, position + HEADER_INTRO_SIZE, count * INDEX_ENTRY_SIZE + storeSize,
+                file);
+        return new Section(body, count);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int size, File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated RPM file: " + file);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return true if this is a source RPM.
+     */
+    public boolean isSourcePackage() {
+        return sourcePackage;
+    }
+
+    public String getName() {
+        return header.getString(TAG_NAME);
+    }
+
+    public String getVersion() {
+        return header.getString(TAG_VERSION);
+    }
+
+    public String getRelease() {
+        return header.getString(TAG_RELEASE);
+    }
+
+    /**
+     * @return the epoch, or null if the package has none.
+     */
+    public Long getEpoch() {
+        return header.getLong(TAG_EPOCH);
+    }
+
+    /**
+     * @return the architecture, "src" for source RPMs (whose header records the build host's architecture).
+     */
+    public String getArch() {
+        return sourcePackage ? "src" : header.getString(TAG_ARCH);
+    }
+
+    /**
+     * @return name-[epoch:]version-release.arch
+     */
+    public String getNevra() {
+        Long epoch = getEpoch();
+        return getName() + "-" + (epoch != null ? epoch + ":" : "") + getVersion() + "-" + getRelease() + "."
+                + getArch();
+    }
+
+    /**
+     * @return the total size of the installed files in bytes, or null if not recorded.
+     */
+    public Long getInstalledSize() {
+        Long size = header.getLong(TAG_LONGSIZE);
+        return size != null ? size : header.getLong(TAG_SIZE);
+    }
+
+    /**
+     * @return the names of the capabilities this package requires. For source RPMs, these are the BuildRequires.
+     */
+    public List<String> getRequires() {
+        return header.getStringArray(TAG_REQUIRENAME);
+    }
+
+    /**
+     * @return the names of the capabilities this package provides.
+     */
+    public List<String> getProvides() {
+        return header.getStringArray(TAG_PROVIDENAME);
+    }
+
+    /**
+     * @return the hex-encoded digest of each file in the payload, empty for directories and other non-regular files.
+     */
+    public List<String> getFileDigests() {
+        return header.getStringArray(TAG_FILEDIGESTS);
+    }
+
+    /**
+     * @return the OpenPGP hash algorithm of the file digests (1 for MD5, 8 for SHA-256), or null if not recorded.
+     */
+    public Long getFileDigestAlgorithm() {
+        return header.getLong(TAG_FILEDIGESTALGO);
+    }
+
+    /**
+     * A digest of the whole package, made up of the SHA-256 of the header and the digest of the payload, which rpm
+     * records when building the package. Identical digests mean identical packages, without reading the payload; the
+     * recorded payload digest is taken on trust and not checked against the payload itself.
+     *
+     * @return the combined digest, or null if the package predates payload digests (rpm before 4.14).
+     */
+    public String getContentDigest() {
+        String headerDigest = signature.getString(SIGTAG_SHA256);
+        List<String> payloadDigest = header.getStringArray(TAG_PAYLOADDIGEST);
+        if (headerDigest == null || payloadDigest.isEmpty()) {
+            return null;
+        }
+        return headerDigest + ":" + payloadDigest.get(0);
+    }
+
+    /**
+     * A header structure: the index entries, followed by the data store they point into.
+     */
+    private static class Section {
+
+        private final ByteBuffer body;
+        private final int count;
+
+        Section(ByteBuffer body, int count) {
+            this.body = body;
+            this.count = count;
+        }
+
+        /**
+         * @return the size of the section on disk, including the intro.
+         */
+        int getLength() {
+            return HEADER_INTRO_SIZE + body.limit();
+        }
+
+        /**
+         * @return the position of the index entry for the tag, or -1 if there is none.
+         */
+        private int find(int tag) {
+            for (int i = 0; i < count; i++) {
+                if (body.getInt(i * INDEX_ENTRY_SIZE) == tag) {
+                    return i * INDEX_ENTRY_SIZE;
+                }
+            }
+            return -1;
+        }
+
+        private int dataOffset(int entry) {
+            int offset = count * INDEX_ENTRY_SIZE + body.getInt(entry + 8);
+            if (offset < count * INDEX_ENTRY_SIZE || offset >= body.limit()) {
+                throw new IllegalStateException("RPM header entry points outside the data store");
+            }
+            return offset;
+        }
+
+        String getString(int tag) {
+            List<String> values = getStrings(tag, 1);
+            return values.isEmpty() ? null : values.get(0);
+        }
+
+        List<String> getStringArray(int tag) {
+            return getStrings(tag, Integer.MAX_VALUE);
+        }
+
+        private List<String> getStrings(int tag, int max) {
+            int entry = find(tag);
+            if (entry < 0) {
+                return Collections.emptyList();
+            }
+            int type = body.getInt(entry + 4);
+            if (type != TYPE_STRING && type != TYPE_STRING_ARRAY && type != TYPE_I18NSTRING) {
+                return Collections.emptyList();
+            }
+
+            int number = Math.min(type == TYPE_STRING ? 1 : body.getInt(entry + 12), max);
+            List<String> values = new ArrayList<String>(Math.min(number, 1024));
+            int offset = dataOffset(entry);
+            for (int i = 0; i < number && offset < body.limit(); i++) {
+                int end = offset;
+                while (end < body.limit() && body.get(end) != 0) {
+                    end++;
+                }
+                values.add(new String(body.array(), body.arrayOffset() + offset, end - offset, UTF8));
+                offset = end + 1;
+            }
+            return values;
+        }
+
+        /**
+         * @return the first value of an integer entry, or null if there is none.
+         */
+        Long getLong(int tag) {
+            int entry = find(tag);
+            if (entry < 0 || body.getInt(entry + 12) < 1) {
+                return null;
+            }
+            int offset = dataOffset(entry);
+            switch (body.getInt(entry + 4)) {
+                case TYPE_INT16:
+                    return (long) (body.getShort(offset) & 0xffff);
+                case TYPE_INT32:
+                    return body.getInt(offset) & 0xffffffffL;
+                case TYPE_INT64:
+                    return body.getLong(offset);
+                default:
+                    return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A named set of RPM macro definitions. The RPM macros runner setting may define a matrix of sets, each starting with
+ * a line of the form "[name]", to build every source RPM once per set:
+ * <pre>
+ * --define='common 1'
+ * [debug] --define='debug 1'
+ * [release] --define='debug 0'
+ * </pre>
+ * Definitions before the first set apply to all sets. A setting without any "[name]" lines is a single, unnamed set.
+ * <p/>
+ * Each set is published into a subdirectory of its chroot's artifacts named after it, next to the chroot's "logs"
+ * directory, so "logs", "." and ".." are not valid set names.
+ */
+public class RpmMacroSet {
+
+    private static final Pattern SET_HEADER = Pattern.compile("^\\s*\\[([A-Za-z0-9._-]+)\\](.*)$");
+    private static final Set<String> RESERVED_NAMES = new HashSet<String>(Arrays.asList(".", "..", "logs"));
+
+    private final String name;
+    private final String macros;
+
+    /**
+     * @param name   the name of the set, or null for the single set of a setting without a matrix.
+     * @param macros the macro definitions of the set, or null if there are none.
+     */
+    public RpmMacroSet(String name, String macros) {
+        this.name = name;
+        this.macros = macros;
+    }
+
+    /**
+     * @return the name of the set, or null if the setting doesn't define a matrix.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the macro definitions, in the format of the RPM macros runner setting, or null if there are none.
+     */
+    public String getMacros() {
+        return macros;
+    }
+
+    /**
+     * Split an RPM macros setting into its sets.
+     *
+     * @param setting the RPM macros setting, or null.
+     *
+     * @return the sets, in the order they are defined. Never empty.
+     * @throws IllegalArgumentException if a set has a reserved name.
+     */
+    public static List<RpmMacroSet> parse(String setting) {
+        List<RpmMacroSet> sets = new ArrayList<RpmMacroSet>();
+        if (setting == null) {
+            sets.add(new RpmMacroSet(null, null));
+            return sets;
+        }
+
+        StringBuilder common = new StringBuilder();
+        List<String> names = new ArrayList<String>();
+        List<StringBuilder> definitions = new ArrayList<StringBuilder>();
+
+        for (String line : setting.split("\n")) {
+            Matcher matcher = SET_HEADER.matcher(line);
+            if (matcher.matches()) {
+                if (RESERVED_NAMES.contains(matcher.group(1))) {
+                    throw new IllegalArgumentException("RPM macro set name \"" + matcher.group(1) + "\" is reserved");
+                }
+                names.add(matcher.group(1));
+                definitions.add(new StringBuilder(matcher.group(2).trim()));
+            } else if (names.isEmpty()) {
+                common.append(line).append("\n");
+            } else {
+                definitions.get(definitions.size() - 1).append("\n").append(line);
+            }
+        }
+
+        if (names.isEmpty()) {
+            sets.add(new RpmMacroSet(null, setting));
+            return sets;
+        }
+
+        for (int i = 0; i < names.size(); i++) {
+            String macros = (common.toString() + definitions.get(i)).trim();
+            sets.add(new RpmMacroSet(names.get(i), macros.length() > 0 ? macros : null));
+        }
+        return sets;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,383 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.common;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A single system command execution, which unlike {@link Util#runSystemCommand(String[])} can be killed (along with
+ * any child processes it has spawned) from another thread while it is running.
+ * <p/>
+ * In streaming mode, each line of output is passed to an {@link OutputListener} as it arrives, and only a bounded tail
+ * of the output is kept in memory for the result.
+ * <p/>
+ * An overall timeout and a no-output timeout may be set, after which the process tree is reaped by a watchdog thread.
+ * Reaped commands return a result whose {@link SystemCommandResult#getTimeoutReason()} says why.
+ * <p/>
+ * Processes which run as another user (such as mock, which consolehelper runs as root) can't be signalled by the agent
+ * user, so a kill command may be set which is run as well, and failures to signal are reported to a kill listener.
+ */
+public class SystemCommand {
+
+    /**
+     * Time to wait after asking a process tree to terminate before forcibly killing what remains of it.
+     */
+    private static final long KILL_GRACE_PERIOD = 5000;
+
+    private final String[] command;
+    private OutputListener outputListener;
+    private String[] killCommand;
+    private OutputListener killListener;
+    private int maxRetainedLines = 0;
+    private long timeout = 0;
+    private long idleTimeout = 0;
+    private Process process;
+    private volatile boolean killed = false;
+    private volatile long lastOutputTime;
+    private volatile String timeoutReason;
+
+    /**
+     * @param command array of commands, needed for pipes to work
+     */
+    public SystemCommand(String[] command) {
+        this.command = command;
+    }
+
+    /**
+     * Enable streaming mode.
+     *
+     * @param outputListener   the listener to pass each line of output to as it arrives.
+     * @param maxRetainedLines the number of trailing output lines to keep for the result.
+     */
+    public void setOutputListener(OutputListener outputListener, int maxRetainedLines) {
+        this.outputListener = outputListener;
+        this.maxRetainedLines = maxRetainedLines;
+    }
+
+    /**
+     * Set how to kill what the agent user can't signal itself.
+     *
+     * @param killCommand  a command to run when the process tree is killed, e.g. mock --orphanskill, or null.
+     * @param killListener receives a line for each failure to kill the process tree, or null.
+     */
+    public void setKillHandling(String[] killCommand, OutputListener killListener) {
+        this.killCommand = killCommand;
+        this.killListener = killListener;
+    }
+
+    /**
+     * Set the limits after which the process tree will be killed.
+     *
+     * @param timeout     the maximum total run time in milliseconds, or 0 for no limit.
+     * @param idleTimeout the maximum time without any output in milliseconds, or 0 for no limit.
+     */
+    public void setTimeouts(long timeout, long idleTimeout) {
+        this.timeout = timeout;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Reset the no-output timeout, for commands whose progress shows somewhere other than in their own output, such as
+     * a log file they write.
+     */
+    public void touch() {
+        lastOutputTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Execute the command and wait for it to finish.
+     *
+     * @return the process output (or its tail, in streaming mode) and exit code.
+     * @throws InterruptedException if the calling thread was interrupted (the process tree is killed first), or if
+     *                              the command was killed before it could be started.
+     * @throws IOException
+     */
+    public SystemCommandResult run() throws InterruptedException, IOException {
+        synchronized (this) {
+            if (killed) {
+                throw new InterruptedException("Command was killed before it was started");
+            }
+
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectErrorStream(true);
+            process = builder.start();
+        }
+
+        lastOutputTime = System.currentTimeMillis();
+        Thread watchdog = startWatchdog();
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new BufferedInputStream(process.getInputStream())));
+
+        LinkedList<String> lines = new LinkedList<String>();
+        long omittedLines = 0;
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lastOutputTime = System.currentTimeMillis();
+                if (outputListener != null) {
+                    outputListener.onOutputLine(line);
+                }
+
+                lines.add(line);
+                if (maxRetainedLines > 0 && lines.size() > maxRetainedLines) {
+                    lines.removeFirst();
+                    omittedLines++;
+                }
+            }
+
+            process.waitFor();
+        } catch (InterruptedException e) {
+            kill();
+            throw e;
+        } catch (IOException e) {
+            // Reading fails when the process is killed underneath us
+            if (!killed) {
+                throw e;
+            }
+        } finally {
+            reader.close();
+            if (watchdog != null) {
+                watchdog.interrupt();
+            }
+        }
+
+        if (killed && timeoutReason == null) {
+            throw new InterruptedException("Command was killed: " + command[0]);
+        }
+
+        StringBuilder stringBuilder = new StringBuilder();
+        if (omittedLines > 0) {
+            stringBuilder.append("[... ").append(omittedLines).append(" earlier lines omitted ...]\n");
+        }
+        for (String line : lines) {
+            stringBuilder.append(line).append("\n");
+        }
+
+        if (timeoutReason != null) {
+            return new SystemCommandResult(-1, stringBuilder.toString(), timeoutReason);
+        }
+        return new SystemCommandResult(process.exitValue(), stringBuilder.toString());
+    }
+
+    /**
+     * Start a thread which kills the process tree if the command runs for too long or stops producing output.
+     *
+     * @return the watchdog thread, or null if no timeouts are set.
+     */
+    private Thread startWatchdog() {
+        if (timeout <= 0 && idleTimeout <= 0) {
+            return null;
+        }
+
+        final long startTime = System.currentTimeMillis();
+        Thread watchdog = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!killed) {
+                        Thread.sleep(1000);
+
+                        long now = System.currentTimeMillis();
+                        if (timeout > 0 && now - startTime > timeout) {
+                            timeoutReason = "timed out after " + timeout / 1000 + "s";
+                        } else if (idleTimeout > 0 && now - lastOutputTime > idleTimeout) {
+                            timeoutReason = "no output for " + idleTimeout / 1000 + "s";
+                        }
+
+                        if (timeoutReason != null) {
+                            kill();
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                    // Command finished
+                }
+            }
+        }, "mock-process-watchdog-" + command[0]);
+        watchdog.setDaemon(true);
+        watchdog.start();
+        return watchdog;
+    }
+
+    /**
+     * Kill the running process and all of its descendants. The tree is first asked to terminate, and anything still
+     * alive after a short grace period is killed forcibly. Safe to call from any thread, and before the command has
+     * started (in which case it will never start).
+     */
+    public synchronized void kill() {
+        if (killed) {
+            return;
+        }
+        killed = true;
+
+        if (process == null) {
+            return;
+        }
+
+        final Process process = this.process;
+        final long pid = getProcessId(process);
+        final List<Long> tree = new ArrayList<Long>();
+        if (pid > 0) {
+            tree.add(pid);
+            collectDescendants(pid, tree);
+            signal(tree, "TERM");
+        }
+
+        Thread reaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runKillCommand();
+                try {
+                    Thread.sleep(KILL_GRACE_PERIOD);
+                } catch (InterruptedException ignored) {
+                }
+                if (!tree.isEmpty()) {
+                    signal(tree, "KILL");
+                }
+                process.destroy();
+            }
+        }, "mock-process-reaper-" + command[0]);
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * @return true if {@link #kill()} has been called on this command.
+     */
+    public boolean isKilled() {
+        return killed;
+    }
+
+    /**
+     * Recursively find the children of the given process.
+     *
+     * @param pid  the parent process ID.
+     * @param tree the list to add the descendant process IDs to.
+     */
+    private static void collectDescendants(long pid, List<Long> tree) {
+        SystemCommandResult result;
+        try {
+            result = Util.runSystemCommand(new String[]{"pgrep", "-P", String.valueOf(pid)});
+        } catch (Exception e) {
+            return;
+        }
+
+        for (String child : result.getOutput().split("\n")) {
+            child = child.trim();
+            if (child.length() > 0) {
+                try {
+                    long childPid = Long.parseLong(child);
+                    tree.add(childPid);
+                    collectDescendants(childPid, tree);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a signal to each of the given processes, ignoring those which have already gone away. Any other failure,
+     * typically a process of another user, is reported to the kill listener.
+     *
+     * @param pids   the process IDs to signal.
+     * @param signal the name of the signal, e.g. TERM.
+     */
+    private void signal(List<Long> pids, String signal) {
+        List<String> command = new ArrayList<String>();
+        command.add("kill");
+        command.add("-" + signal);
+        for (Long pid : pids) {
+            command.add(String.valueOf(pid));
+        }
+
+        SystemCommandResult result;
+        try {
+            result = Util.runSystemCommand(command.toArray(new String[command.size()]));
+        } catch (Exception e) {
+            reportKillFailure("kill -" + signal + " failed: " + e.getMessage());
+            return;
+        }
+
+        if (result.getReturnCode() != 0) {
+            for (String line : result.getOutput().split("\n")) {
+                if (line.trim().length() > 0 && !line.contains("No such process")) {
+                    reportKillFailure("kill -" + signal + " failed: " + line.trim());
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the kill command, if one is set, reporting it if it fails.
+     */
+    private void runKillCommand() {
+        if (killCommand == null) {
+            return;
+        }
+
+        try {
+            SystemCommandResult result = Util.runSystemCommand(killCommand);
+            if (result.getReturnCode() != 0) {
+                reportKillFailure(killCommand[0] + " exited with code " + result.getReturnCode() + ": "
+                        + result.getOutput().trim());
+            }
+        } catch (Exception e) {
+            reportKillFailure(killCommand[0] + " failed: " + e.getMessage());
+        }
+    }
+
+    private void reportKillFailure(String message) {
+        if (killListener != null) {
+            killListener.onOutputLine(message);
+        }
+    }
+
+    /**
+     * Get the operating system process ID of the given process. There is no public API for this before Java 9, so
+     * reflection is used.
+     *
+     * @param process the process.
+     *
+     * @return the process ID, or -1 if it could not be determined.
+     */
+    private static long getProcessId(Process process) {
+        try {
+            Method method = Process.class.getMethod("pid");
+            return ((Number) method.invoke(process)).longValue();
+        } catch (Exception ignored) {
+        }
+
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return ((Number) field.get(process)).longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -24,10 +24,16 @@ public class SystemCommandResult {
 
     private int returnCode;
     private String output;
+    private String timeoutReason;
 
     public SystemCommandResult(int returnCode, String output) {
+        this(returnCode, output, null);
+    }
+
+    public SystemCommandResult(int returnCode, String output, String timeoutReason) {
         this.returnCode = returnCode;
         this.output = output;
+        this.timeoutReason = timeoutReason;
     }
 
     public int getReturnCode() {
@@ -37,4 +43,15 @@ public class SystemCommandResult {
     public String getOutput() {
         return output;
     }
+
+    public boolean isTimedOut() {
+        return timeoutReason != null;
+    }
+
+    /**
+     * @return why the command was killed by its watchdog, or null if it ran to completion.
+     */
+    public String getTimeoutReason() {
+        return timeoutReason;
+    }
 }
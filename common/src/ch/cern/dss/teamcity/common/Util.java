@@ -24,6 +24,8 @@ import java.io.*;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 /**
@@ -41,27 +43,7 @@ public class Util {
      * @throws java.io.IOException
      */
     public static SystemCommandResult runSystemCommand(String[] command) throws InterruptedException, IOException {
-        ProcessBuilder builder = new ProcessBuilder(command);
-        builder.redirectErrorStream(true);
-        Process process = builder.start();
-
-        BufferedReader reader = new BufferedReader(
-                new InputStreamReader(new BufferedInputStream(process.getInputStream())));
-
-        StringBuilder stringBuilder = new StringBuilder();
-
-        String line;
-        while ((line = reader.readLine()) != null) {
-            stringBuilder.append(line).append("\n");
-        }
-
-        try {
-            process.waitFor();
-        } finally {
-            reader.close();
-        }
-
-        return new SystemCommandResult(process.exitValue(), stringBuilder.toString());
+        return new SystemCommand(command).run();
     }
 
     /**
@@ -98,4 +80,53 @@ public class Util {
         return result;
     }
 
+    /**
+     * @return a new SHA-256 message digest.
+     */
+    public static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compute the SHA-256 hash of a file's contents.
+     *
+     * @param file the file to hash.
+     *
+     * @return the hex-encoded hash.
+     * @throws IOException
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest = newSha256Digest();
+        InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            stream.close();
+        }
+        return toHexString(digest.digest());
+    }
+
+    /**
+     * Encode a byte array as a lowercase hexadecimal string.
+     *
+     * @param bytes the bytes to encode.
+     *
+     * @return the hex string.
+     */
+    public static String toHexString(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
 }
@@ -83,7 +83,83 @@
                                      expanded="true"/>
             <span class="error" id="error_${constants.rpmMacrosKey}"></span>
             <span class="smallNote">Specify any additional RPM macro definitions (e.g. <b>--define='extra_cheese
-                1'</b>), separated by whitespace.</span>
+                1'</b>), separated by whitespace. To build every source RPM with several sets of macros, start each set
+                on a new line with its name in brackets (e.g. <b>[debug] --define='debug 1'</b>); definitions before
+                the first set apply to all of them. Each set is published into its own subdirectory of the chroot's
+                artifacts, so <b>logs</b> can't be used as a set name.</span>
+        </td>
+    </tr>
+    <tr>
+        <th><label for="${constants.buildModeKey}">Build mode:</label></th>
+        <td>
+            <props:selectProperty name="${constants.buildModeKey}">
+                <props:option value="${constants.buildModeParallel}">Parallel</props:option>
+                <props:option value="${constants.buildModeChain}">Chain</props:option>
+            </props:selectProperty>
+            <span class="error" id="error_${constants.buildModeKey}"></span>
+            <span class="smallNote"><b>Parallel</b> builds each source RPM in its own mock session, in parallel where
+                they don't build-require each other. <b>Chain</b> builds all source RPMs of a chroot one after the other
+                in a single session with <b>mock --chain</b>, saving the per-package setup at the cost of
+                parallelism.</span>
+        </td>
+    </tr>
+    <tr>
+        <th><label for="${constants.tmpfsSizeKey}">tmpfs size (optional):</label></th>
+        <td>
+            <props:textProperty name="${constants.tmpfsSizeKey}" className="longField" maxlength="10"/>
+            <span class="error" id="error_${constants.tmpfsSizeKey}"></span>
+            <span class="smallNote">Optionally build each chroot in memory, on a tmpfs limited to this many MB. A chroot
+                is built on disk instead if the agent's tmpfs budget (<b>mock.tmpfs.budgetMb</b>) is already taken up
+                by other chroots.</span>
+        </td>
+    </tr>
+    <tr>
+        <th><label for="${constants.priorityKey}">Scheduling priority (optional):</label></th>
+        <td>
+            <props:textProperty name="${constants.priorityKey}" className="longField" maxlength="10"/>
+            <span class="error" id="error_${constants.priorityKey}"></span>
+            <span class="smallNote">Optionally specify an integer priority for this build's chroots in the agent-wide
+                mock build queue. Higher values are built first when the agent uses the <b>priority</b> queue policy
+                (<b>mock.scheduler.queuePolicy</b>), otherwise chroots are built in the order they were queued.</span>
+        </td>
+    </tr>
+    <tr>
+        <th><label for="${constants.failFastKey}">Fail fast:</label></th>
+        <td>
+            <props:checkboxProperty name="${constants.failFastKey}"/>
+            <span class="smallNote">Stop building the remaining chroots as soon as one of them fails.</span>
+        </td>
+    </tr>
+    <tr>
+        <th><label for="${constants.initTimeoutKey}">Init timeout (optional):</label></th>
+        <td>
+            <props:textProperty name="${constants.initTimeoutKey}" className="longField" maxlength="10"/>
+            <span class="error" id="error_${constants.initTimeoutKey}"></span>
+            <span class="smallNote">Maximum time in minutes for <b>mock --init</b>.</span>
+        </td>
+    </tr>
+    <tr>
+        <th><label for="${constants.rebuildTimeoutKey}">Rebuild timeout (optional):</label></th>
+        <td>
+            <props:textProperty name="${constants.rebuildTimeoutKey}" className="longField" maxlength="10"/>
+            <span class="error" id="error_${constants.rebuildTimeoutKey}"></span>
+            <span class="smallNote">Maximum time in minutes for <b>mock --rebuild</b> in each chroot.</span>
+        </td>
+    </tr>
+    <tr>
+        <th><label for="${constants.publishTimeoutKey}">Publish timeout (optional):</label></th>
+        <td>
+            <props:textProperty name="${constants.publishTimeoutKey}" className="longField" maxlength="10"/>
+            <span class="error" id="error_${constants.publishTimeoutKey}"></span>
+            <span class="smallNote">Maximum time in minutes for copying each chroot's results to the artifacts directory.</span>
+        </td>
+    </tr>
+    <tr>
+        <th><label for="${constants.noOutputTimeoutKey}">No-output timeout (optional):</label></th>
+        <td>
+            <props:textProperty name="${constants.noOutputTimeoutKey}" className="longField" maxlength="10"/>
+            <span class="error" id="error_${constants.noOutputTimeoutKey}"></span>
+            <span class="smallNote">Kill mock if it has produced no output for this many minutes.</span>
         </td>
     </tr>
 </layout:settingsGroup>
\ No newline at end of file
@@ -29,50 +29,83 @@
 <script src="${teamcityPluginResourcesPath}js/prettify.js"></script>
 <script src="${teamcityPluginResourcesPath}js/bootstrap-collapse.js"></script>
 <script>
+    // The clusters of each log are only loaded when its chroot is expanded, a page at a time
+    function loadMockLogClusters(container, url) {
+        jQuery.get(url, function (html) {
+            container.append(html);
+            prettyPrint();
+        });
+    }
+
     jQuery(document).ready(function () {
-        prettyPrint();
+        jQuery('.mock-report').bind('show', function () {
+            jQuery(this).find('.mock-log-clusters[data-url]').each(function () {
+                var container = jQuery(this);
+                loadMockLogClusters(container, container.attr('data-url'));
+                container.removeAttr('data-url');
+            });
+        });
+
+        jQuery(document).delegate('.mock-log-more', 'click', function (event) {
+            event.preventDefault();
+            var link = jQuery(this);
+            var container = link.closest('.mock-log-clusters');
+            link.remove();
+            loadMockLogClusters(container, link.attr('href'));
+        });
     });
 </script>
 
+<c:if test="${not empty timeline and not timeline.empty}">
+    <div class="timeline">
+        <h2>Timeline <span class="timeline-total">(${timeline.duration})</span></h2>
+        <c:forEach var="row" items="${timeline.rows}">
+            <div class="timeline-row${row.critical ? ' timeline-critical' : ''}">
+                <span class="timeline-name" title="${row.critical ? 'Finished last: critical path of the build' : ''}"
+                        ><c:out value="${row.name}"/> (${row.duration})</span>
+                <div class="timeline-track">
+                    <c:forEach var="bar" items="${row.bars}">
+                        <div class="timeline-bar timeline-${bar.kind}" style="left: ${bar.left}%; width: ${bar.width}%"
+                             title="<c:out value="${bar.name}"/>: ${bar.duration}"></div>
+                    </c:forEach>
+                </div>
+            </div>
+        </c:forEach>
+    </div>
+</c:if>
+
 <div>
-    <c:forEach var="report" items="${reports}">
+    <c:forEach var="report" items="${reports}" varStatus="reportStatus">
 
         <div class="accordion" id="accordion">
             <div class="accordion-group">
                 <div class="accordion-heading">
-                    <h2 class="accordion-toggle">chroot: ${report.name}</h2>
+                    <h2 class="accordion-toggle">chroot: <c:out value="${report.name}"/></h2>
 
                     <span class="accordion-toggle">
                         <span class="error-summary">Errors: <strong>${report.errors}</strong></span>
                         <span class="warning-summary">Warnings: <strong>${report.warnings}</strong></span>
                     </span>
 
-                    <a class="accordion-toggle" data-toggle="collapse" data-parent="#accordion" href="#${report.name}">
+                    <a class="accordion-toggle" data-toggle="collapse" data-parent="#accordion" href="#report${reportStatus.index}">
                         &raquo; Click to view report
                     </a>
                 </div>
-                <div id="${report.name}" class="accordion-body collapse">
+                <div id="report${reportStatus.index}" class="accordion-body collapse mock-report">
                     <div class="accordion-inner">
 
                         <c:forEach var="log" items="${report.logs}">
 
-                            <strong>${log.key}</strong>
-                            <c:if test="${empty log.value}">
-<pre class="prettyprint">Nothing suspicious found</pre>
-                            </c:if>
-
-                            <c:forEach var="cluster" items="${log.value}">
-
-                                <c:forEach var="entry" items="${cluster}" begin="0" end="0" step="1">
-                                    <c:set var="beginLine" value="${entry.key}"/>
-                                </c:forEach>
+                            <strong><c:out value="${log.name}"/></strong>
+                            <span class="error-summary">Errors: ${log.errors}</span>
+                            <span class="warning-summary">Warnings: ${log.warnings}</span>
 
-                                <pre class="prettyprint linenums:${beginLine} lang-bsh"
-                                    ><c:forEach var="lineEntry" items="${cluster}">
-<span class="${lineEntry.value.key}">${lineEntry.value.value}</span
-                                    ></c:forEach
-                                ></pre>
-                            </c:forEach>
+                            <c:url var="clustersUrl" value="${constants.reportControllerPath}">
+                                <c:param name="buildId" value="${buildId}"/>
+                                <c:param name="chroot" value="${report.name}"/>
+                                <c:param name="log" value="${log.name}"/>
+                            </c:url>
+                            <div class="mock-log-clusters" data-url="${clustersUrl}"></div>
 
                         </c:forEach>
 
@@ -0,0 +1,54 @@
+<%--
+* Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+* Author: Justin Salmon <jsalmon@cern.ch>
+*
+* This file is part of the Mock TeamCity plugin.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+--%>
+
+<%-- One page of the clusters of a single log, loaded into the log report tab by MockLogReportController --%>
+
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+
+<jsp:useBean id="constants" class="ch.cern.dss.teamcity.server.MockConstantsBean"/>
+
+<c:if test="${clusterCount == 0}">
+<pre class="prettyprint">Nothing suspicious found</pre>
+</c:if>
+
+<c:forEach var="cluster" items="${clusters}">
+
+    <c:forEach var="entry" items="${cluster}" begin="0" end="0" step="1">
+        <c:set var="beginLine" value="${entry.key}"/>
+    </c:forEach>
+
+    <pre class="prettyprint linenums:${beginLine} lang-bsh"
+        ><c:forEach var="lineEntry" items="${cluster}">
+<span class="${lineEntry.value.key}"><c:out value="${lineEntry.value.value}"/></span
+        ></c:forEach
+    ></pre>
+</c:forEach>
+
+<c:if test="${nextPage >= 0}">
+    <c:url var="nextPageUrl" value="${constants.reportControllerPath}">
+        <c:param name="buildId" value="${param.buildId}"/>
+        <c:param name="chroot" value="${param.chroot}"/>
+        <c:param name="log" value="${param.log}"/>
+        <c:param name="page" value="${nextPage}"/>
+    </c:url>
+    <a class="mock-log-more" href="${nextPageUrl}">
+        &raquo; Show more (${nextPage * constants.reportPageSize} of ${clusterCount} clusters shown)
+    </a>
+</c:if>
@@ -43,4 +43,39 @@
 <div class="parameter">
     Additional RPM macro definitions: <strong><props:displayValue name="${constants.rpmMacrosKey}"
                                                                   emptyValue="<not specified>"/></strong>
+</div>
+
+<div class="parameter">
+    Build mode: <strong><props:displayValue name="${constants.buildModeKey}"
+                                            emptyValue="${constants.buildModeParallel}"/></strong>
+</div>
+
+<div class="parameter">
+    tmpfs size (MB): <strong><props:displayValue name="${constants.tmpfsSizeKey}"
+                                                 emptyValue="<not specified>"/></strong>
+</div>
+
+<div class="parameter">
+    Scheduling priority: <strong><props:displayValue name="${constants.priorityKey}"
+                                                     emptyValue="<not specified>"/></strong>
+</div>
+
+<div class="parameter">
+    Fail fast: <strong><props:displayCheckboxValue name="${constants.failFastKey}"/></strong>
+</div>
+
+<div class="parameter">
+    Init timeout (minutes): <strong><props:displayValue name="${constants.initTimeoutKey}" emptyValue="<not specified>"/></strong>
+</div>
+
+<div class="parameter">
+    Rebuild timeout (minutes): <strong><props:displayValue name="${constants.rebuildTimeoutKey}" emptyValue="<not specified>"/></strong>
+</div>
+
+<div class="parameter">
+    Publish timeout (minutes): <strong><props:displayValue name="${constants.publishTimeoutKey}" emptyValue="<not specified>"/></strong>
+</div>
+
+<div class="parameter">
+    No-output timeout (minutes): <strong><props:displayValue name="${constants.noOutputTimeoutKey}" emptyValue="<not specified>"/></strong>
 </div>
\ No newline at end of file
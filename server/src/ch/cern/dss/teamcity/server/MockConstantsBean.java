@@ -49,4 +49,63 @@ public class MockConstantsBean {
     public String getRpmMacrosKey() {
         return MockConstants.RPM_MACROS;
     }
+
+    @NotNull
+    public String getBuildModeKey() {
+        return MockConstants.BUILD_MODE;
+    }
+
+    @NotNull
+    public String getBuildModeParallel() {
+        return MockConstants.BUILD_MODE_PARALLEL;
+    }
+
+    @NotNull
+    public String getBuildModeChain() {
+        return MockConstants.BUILD_MODE_CHAIN;
+    }
+
+    @NotNull
+    public String getTmpfsSizeKey() {
+        return MockConstants.TMPFS_SIZE;
+    }
+
+    @NotNull
+    public String getPriorityKey() {
+        return MockConstants.PRIORITY;
+    }
+
+    @NotNull
+    public String getFailFastKey() {
+        return MockConstants.FAIL_FAST;
+    }
+
+    @NotNull
+    public String getInitTimeoutKey() {
+        return MockConstants.INIT_TIMEOUT;
+    }
+
+    @NotNull
+    public String getRebuildTimeoutKey() {
+        return MockConstants.REBUILD_TIMEOUT;
+    }
+
+    @NotNull
+    public String getPublishTimeoutKey() {
+        return MockConstants.PUBLISH_TIMEOUT;
+    }
+
+    @NotNull
+    public String getNoOutputTimeoutKey() {
+        return MockConstants.NO_OUTPUT_TIMEOUT;
+    }
+
+    @NotNull
+    public String getReportControllerPath() {
+        return MockConstants.REPORT_CONTROLLER_PATH;
+    }
+
+    public int getReportPageSize() {
+        return MockConstants.REPORT_PAGE_SIZE;
+    }
 }
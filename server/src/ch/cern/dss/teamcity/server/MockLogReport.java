@@ -20,29 +20,38 @@
 
 package ch.cern.dss.teamcity.server;
 
+import ch.cern.dss.teamcity.common.MockLogSummary;
+
 import java.lang.String;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class MockLogReport {
 
     private String chrootName;
-    private Map<String, List<Map<Integer, AbstractMap.SimpleEntry<String, String>>>> logs;
+    private Map<String, MockLogSummary.Log> logs;
     private Integer errors;
     private Integer warnings;
+    private List<MockStage> stages;
 
-    public MockLogReport(String chrootName, Map<String, String> logFiles) {
+    /**
+     * @param chrootName the name of the chroot (and macro set or package) the logs belong to.
+     * @param summary    the errors and warnings found in the logs, either published by the agent or analyzed here.
+     * @param stateLog   the contents of state.log, or null if there is none.
+     */
+    public MockLogReport(String chrootName, MockLogSummary summary, String stateLog) {
         this.chrootName = chrootName;
+        this.errors = summary.getErrors();
+        this.warnings = summary.getWarnings();
+        this.logs = summary.getLogs();
 
-        logs = new HashMap<String, List<Map<Integer, AbstractMap.SimpleEntry<String, String>>>>();
-        for (Map.Entry<String, String> e : logFiles.entrySet()) {
-            this.logs.put(e.getKey(), processLogFile(e.getValue()));
-        }
+        stages = stateLog != null ? MockStage.parse(stateLog) : new ArrayList<MockStage>();
     }
 
-    public Map<String, List<Map<Integer,AbstractMap.SimpleEntry<String,String>>>> getLogs() {
-        return this.logs;
+    /**
+     * @return the summaries of each log, with their error and warning counts.
+     */
+    public Collection<MockLogSummary.Log> getLogs() {
+        return this.logs.values();
     }
 
     public String getName() {
@@ -58,126 +67,66 @@ public class MockLogReport {
     }
 
     /**
-     * Parse the given log file and look for errors and warnings.
-     *
-     * @param fullLog the entire log file to be processed.
-     *
-     * @return list of mappings to the line number and line text/annotation type.
+     * @return the stages of the build recorded in state.log.
      */
-    private List<Map<Integer, AbstractMap.SimpleEntry<String, String>>> processLogFile(String fullLog) {
-        Map<Integer, AbstractMap.SimpleEntry<String, String>> selectedLines
-                = new TreeMap<Integer, AbstractMap.SimpleEntry<String, String>>();
-
-        if (fullLog.length() == 0) {
-            List<Map<Integer, AbstractMap.SimpleEntry<String, String>>> emptyList
-                    = new ArrayList<Map<Integer, AbstractMap.SimpleEntry<String, String>>>();
-            Map<Integer, AbstractMap.SimpleEntry<String, String>> emptyMap
-                    = new HashMap<Integer, AbstractMap.SimpleEntry<String, String>>();
-
-            emptyMap.put(1, new AbstractMap.SimpleEntry<String, String>("warning", "Log file is empty"));
-            emptyList.add(emptyMap);
-            return emptyList;
-        }
-
-        Pattern errorPattern = Pattern.compile("\\W*error\\W.*", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
-        Pattern warningPattern = Pattern.compile("\\W*warning\\W.*", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
-        Matcher matcher;
-
-        String[] lines = fullLog.split("\n");
-        String line;
-        for (Integer i = 0; i < lines.length; i++) {
-            line = lines[i];
-
-            matcher = errorPattern.matcher(line);
-            if (matcher.matches()) {
-                selectedLines.put(i, new AbstractMap.SimpleEntry<String, String>("error", strip(line)));
-            }
+    public List<MockStage> getStages() {
+        return this.stages;
+    }
 
-            matcher = warningPattern.matcher(line);
-            if (matcher.matches()) {
-                selectedLines.put(i, new AbstractMap.SimpleEntry<String, String>("warning", strip(line)));
+    /**
+     * @return the number of error, warning and context lines in this report.
+     */
+    public int getLineCount() {
+        int lines = 0;
+        for (MockLogSummary.Log log : logs.values()) {
+            for (MockLogSummary.Cluster cluster : log.getClusters()) {
+                lines += cluster.getLines().size();
             }
         }
-
-        selectedLines = buildContext(selectedLines, lines);
-        List<Map<Integer, AbstractMap.SimpleEntry<String, String>>> clusters = clusterLines(selectedLines);
-
-        return clusters;
+        return lines;
     }
 
     /**
-     * Retrieve the two lines above and below the selected error/warning lines, to build a context around the error for
-     * ease of debugging.
-     *
-     * @param selectedLines the lines identified as errors/warnings.
-     * @param lines         the entire log file split into lines.
+     * @param logName the name of the log file.
      *
-     * @return map containing the originally selected lines, plus the context lines, sorted by line number.
+     * @return the number of clusters in the log, or -1 if there is no such log in this report.
      */
-    private Map<Integer, AbstractMap.SimpleEntry<String, String>> buildContext(
-            Map<Integer, AbstractMap.SimpleEntry<String, String>> selectedLines, String[] lines) {
-
-        Map<Integer, AbstractMap.SimpleEntry<String, String>> contextLines
-                = new TreeMap<Integer, AbstractMap.SimpleEntry<String, String>>();
-        contextLines.putAll(selectedLines);
-
-        for (Integer lineNo : selectedLines.keySet()) {
-            Integer start = lineNo - 2;
-            Integer end = lineNo + 2;
-
-            if (start < 0) start = 0;
-            if (end >= lines.length) end = lines.length - 1;
-
-            for (int i = start; i < end + 1; i++) {
-                if (!selectedLines.containsKey(i)) {
-                    contextLines.put(i, new AbstractMap.SimpleEntry<String, String>("context", strip(lines[i])));
-                }
-            }
-        }
-
-        return contextLines;
+    public int getClusterCount(String logName) {
+        MockLogSummary.Log log = logs.get(logName);
+        return log != null ? log.getClusters().size() : -1;
     }
 
     /**
-     * Cluster each set of error/warning lines with the corresponding context lines into a list of maps.
+     * Get a page of the clusters of a log, in a format easily iterable within JSP.
      *
-     * @param lines all the selected error/warning/context lines.
+     * @param logName the name of the log file.
+     * @param first   the index of the first cluster to return.
+     * @param count   the maximum number of clusters to return.
      *
-     * @return list of line clusters.
+     * @return list of mappings to the line number and line text/annotation type.
      */
-    private List<Map<Integer, AbstractMap.SimpleEntry<String, String>>> clusterLines(
-            Map<Integer, AbstractMap.SimpleEntry<String, String>> lines) {
-
+    public List<Map<Integer, AbstractMap.SimpleEntry<String, String>>> getClusters(String logName, int first,
+                                                                                  int count) {
         List<Map<Integer, AbstractMap.SimpleEntry<String, String>>> clusters
                 = new ArrayList<Map<Integer, AbstractMap.SimpleEntry<String, String>>>();
-        Map<Integer, AbstractMap.SimpleEntry<String, String>> currentCluster = null;
-        Integer previous = 0;
-
-        for (Integer i : lines.keySet()) {
-            AbstractMap.SimpleEntry<String, String> line = lines.get(i);
-
-            if (previous == i - 1) {
-                if (currentCluster != null) {
-                    currentCluster.put(i, new AbstractMap.SimpleEntry<String, String>(line.getKey(), line.getValue()));
-                }
-            } else {
-                if (currentCluster != null) {
-                    clusters.add(currentCluster);
-                }
-                currentCluster = new TreeMap<Integer, AbstractMap.SimpleEntry<String, String>>();
-                currentCluster.put(i, new AbstractMap.SimpleEntry<String, String>(line.getKey(), line.getValue()));
-            }
-            previous = i;
+
+        MockLogSummary.Log log = logs.get(logName);
+        if (log == null) {
+            return clusters;
         }
 
-        if (currentCluster != null) {
-            clusters.add(currentCluster);
+        List<MockLogSummary.Cluster> page = log.getClusters().subList(Math.min(first, log.getClusters().size()),
+                (int) Math.min((long) first + count, log.getClusters().size()));
+        for (MockLogSummary.Cluster cluster : page) {
+            Map<Integer, AbstractMap.SimpleEntry<String, String>> lines
+                    = new TreeMap<Integer, AbstractMap.SimpleEntry<String, String>>();
+            int lineNo = cluster.getFirstLine();
+            for (MockLogSummary.Line line : cluster.getLines()) {
+                lines.put(lineNo++, new AbstractMap.SimpleEntry<String, String>(line.getKind(), line.getText()));
+            }
+            clusters.add(lines);
         }
 
         return clusters;
     }
-
-    private String strip(String string) {
-        return string.replace("\n", "");
-    }
 }
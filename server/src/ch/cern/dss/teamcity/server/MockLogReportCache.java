@@ -0,0 +1,309 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.cern.dss.teamcity.server;
+
+import ch.cern.dss.teamcity.common.MockConstants;
+import ch.cern.dss.teamcity.common.MockLogSummary;
+import ch.cern.dss.teamcity.common.Util;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SBuild;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Least recently used cache of the log reports of recent builds, so that the logs of a build are not read again each
+ * time someone opens its log report tab or pages through a log. Concurrent requests for the same build share a single
+ * load.
+ * <p/>
+ * Each entry is keyed by build ID, and holds a signature of the log files it was loaded from, so that a report is
+ * reloaded when the logs change, e.g. while the build is still running. The cache holds at most
+ * {@link MockConstants#REPORT_CACHE_SIZE} builds and {@link MockConstants#REPORT_CACHE_MAX_LINES} report lines.
+ */
+public class MockLogReportCache {
+
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    private long totalLines = 0;
+
+    /**
+     * Get the processed reports for each chroot, in a format easily parsable within JSP. Reports are cached until the
+     * log files they were created from change.
+     *
+     * @param build the current build being viewed.
+     *
+     * @return the data structure holding the processed report information.
+     * @throws IOException
+     */
+    public List<MockLogReport> getReports(@NotNull SBuild build) throws IOException {
+        final Map<String, File> logDirectories = getLogDirectories(build);
+
+        return get(build.getBuildId(), getSignature(logDirectories),
+                new Callable<List<MockLogReport>>() {
+                    @Override
+                    public List<MockLogReport> call() throws IOException {
+                        List<MockLogReport> reports = new ArrayList<MockLogReport>();
+                        for (Map.Entry<String, File> e : logDirectories.entrySet()) {
+                            reports.add(createReport(e.getKey(), e.getValue()));
+                        }
+                        return reports;
+                    }
+                });
+    }
+
+    /**
+     * @param logDirectories the log directories of a build.
+     *
+     * @return a string which changes whenever a log directory or any log file in it is added, removed or modified.
+     */
+    private static String getSignature(Map<String, File> logDirectories) {
+        StringBuilder signature = new StringBuilder();
+        for (Map.Entry<String, File> e : logDirectories.entrySet()) {
+            signature.append(e.getKey());
+            signature.append(':').append(fileSignature(new File(e.getValue(), MockConstants.LOG_SUMMARY_FILE)));
+            for (String name : MockConstants.MOCK_LOG_FILES) {
+                signature.append(':').append(fileSignature(new File(e.getValue(), name)));
+            }
+            signature.append(';');
+        }
+        return signature.toString();
+    }
+
+    private static String fileSignature(File file) {
+        return file.lastModified() + "/" + file.length();
+    }
+
+    /**
+     * Get all mock build log directories within the artifacts of this build.
+     *
+     * @param build the current build being viewed.
+     *
+     * @return a map of chroot names : log directories, sorted by name.
+     */
+    private Map<String, File> getLogDirectories(SBuild build) {
+        Map<String, File> logDirectories = new TreeMap<String, File>();
+
+        File[] chrootDirectories = build.getArtifactsDirectory().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return new File(dir, name).isDirectory();
+            }
+        });
+
+        if (chrootDirectories != null && chrootDirectories.length > 0) {
+            for (File chrootDirectory : chrootDirectories) {
+                addLogDirectories(chrootDirectory.getName(), chrootDirectory, logDirectories);
+
+                // Runs with a matrix of RPM macro sets publish each set in its own subdirectory
+                File[] macroSetDirectories = chrootDirectory.listFiles(new FilenameFilter() {
+                    @Override
+                    public boolean accept(File dir, String name) {
+                        return !name.equals("logs") && new File(dir, name + "/logs").isDirectory();
+                    }
+                });
+
+                if (macroSetDirectories != null) {
+                    for (File macroSetDirectory : macroSetDirectories) {
+                        addLogDirectories(chrootDirectory.getName() + "/" + macroSetDirectory.getName(),
+                                macroSetDirectory, logDirectories);
+                    }
+                }
+            }
+        }
+
+        return logDirectories;
+    }
+
+    /**
+     * Add the mock build log directories published into an artifact directory.
+     *
+     * @param name              the name to report the logs under.
+     * @param artifactDirectory the directory holding the "logs" directory.
+     * @param logDirectories    the map of names : log directories to add to.
+     */
+    private void addLogDirectories(String name, File artifactDirectory, Map<String, File> logDirectories) {
+        File logDirectory = new File(artifactDirectory, "logs");
+        if (!logDirectory.isDirectory()) {
+            return;
+        }
+
+        if (new File(logDirectory, "build.log").exists()) {
+            logDirectories.put(name, logDirectory);
+            return;
+        }
+
+        // Runs of several source RPMs publish the logs of each package in its own subdirectory
+        File[] packageDirectories = logDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return new File(dir, name + "/build.log").exists();
+            }
+        });
+
+        if (packageDirectories != null) {
+            for (File packageDirectory : packageDirectories) {
+                logDirectories.put(name + "/" + packageDirectory.getName(), packageDirectory);
+            }
+        }
+    }
+
+    /**
+     * Create the report of a single log directory. The summary published by the agent is used if there is one; the
+     * logs of builds run before the agent published summaries are analyzed here.
+     *
+     * @param name         the name to report the logs under.
+     * @param logDirectory the directory containing build.log, state.log and root.log.
+     *
+     * @return the report.
+     * @throws IOException
+     */
+    private MockLogReport createReport(String name, File logDirectory) throws IOException {
+        File stateLogFile = new File(logDirectory, "state.log");
+        String stateLog = stateLogFile.isFile() ? Util.readFile(stateLogFile.getAbsolutePath()) : null;
+
+        File summaryFile = new File(logDirectory, MockConstants.LOG_SUMMARY_FILE);
+        if (summaryFile.isFile()) {
+            try {
+                return new MockLogReport(name, MockLogSummary.read(summaryFile), stateLog);
+            } catch (IOException e) {
+                Loggers.SERVER.warn("Unable to read " + summaryFile + ", analyzing the logs instead: "
+                        + e.getMessage());
+            }
+        }
+
+        return new MockLogReport(name, MockLogSummary.analyze(logDirectory), stateLog);
+    }
+
+    /**
+     * Get the reports of a build, loading them if they are not cached or the logs have changed since. If another
+     * request is already loading the same reports, wait for it instead.
+     *
+     * @param buildId   the ID of the build.
+     * @param signature the signature of the log files of the build.
+     * @param loader    loads the reports from the log files.
+     *
+     * @return the reports of the build.
+     * @throws IOException if the reports could not be loaded.
+     */
+    private List<MockLogReport> get(long buildId, @NotNull String signature,
+                                   @NotNull Callable<List<MockLogReport>> loader) throws IOException {
+        Entry entry;
+        boolean owner = false;
+        synchronized (entries) {
+            entry = entries.get(buildId);
+            if (entry == null || !entry.signature.equals(signature)) {
+                if (entry != null) {
+                    remove(buildId);
+                }
+                entry = new Entry(signature, new FutureTask<List<MockLogReport>>(loader));
+                entries.put(buildId, entry);
+                owner = true;
+            }
+        }
+
+        // Load outside the lock, so that requests for other builds are not held up
+        if (owner) {
+            entry.task.run();
+        }
+
+        List<MockLogReport> reports;
+        try {
+            reports = entry.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading mock log reports of build " + buildId);
+        } catch (ExecutionException e) {
+            synchronized (entries) {
+                if (entries.get(buildId) == entry) {
+                    remove(buildId);
+                }
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to load mock log reports of build " + buildId + ": "
+                    + e.getCause().getMessage(), e.getCause());
+        }
+
+        if (owner) {
+            synchronized (entries) {
+                if (entries.get(buildId) == entry) {
+                    entry.lines = countLines(reports);
+                    totalLines += entry.lines;
+                    evict(buildId);
+                }
+            }
+        }
+        return reports;
+    }
+
+    /**
+     * Must be called holding the lock on the entries.
+     *
+     * @param keep the build whose entry has just been loaded, which is never evicted.
+     */
+    private void evict(long keep) {
+        Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext() && (entries.size() > MockConstants.REPORT_CACHE_SIZE
+                || totalLines > MockConstants.REPORT_CACHE_MAX_LINES)) {
+            Map.Entry<Long, Entry> eldest = iterator.next();
+            if (eldest.getKey() != keep) {
+                totalLines -= eldest.getValue().lines;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Must be called holding the lock on the entries.
+     */
+    private void remove(long buildId) {
+        Entry entry = entries.remove(buildId);
+        if (entry != null) {
+            totalLines -= entry.lines;
+        }
+    }
+
+    private static long countLines(List<MockLogReport> reports) {
+        long lines = 0;
+        for (MockLogReport report : reports) {
+            lines += report.getLineCount();
+        }
+        return lines;
+    }
+
+    private static class Entry {
+
+        private final String signature;
+        private final FutureTask<List<MockLogReport>> task;
+        private long lines = 0;
+
+        public Entry(String signature, FutureTask<List<MockLogReport>> task) {
+            this.signature = signature;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.cern.dss.teamcity.server;
+
+import ch.cern.dss.teamcity.common.MockConstants;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the clusters of a single log of a single chroot, a page at a time, so that the log report tab only has to
+ * render the chroot names and counts up front. The page requests the clusters when a chroot is expanded.
+ * <p/>
+ * Request parameters: buildId, chroot (the report name), log (e.g. build.log) and page (zero-based, default 0). The
+ * user must be allowed to view the project of the build.
+ */
+public class MockLogReportController extends BaseController {
+
+    private final SBuildServer server;
+    private final PluginDescriptor pluginDescriptor;
+    private final MockLogReportCache reportCache;
+
+    /**
+     * @param server            the build server object.
+     * @param controllerManager the manager with which we register this controller.
+     * @param pluginDescriptor  the plugin descriptor used to get base path to JSP files.
+     * @param reportCache       the cache of the reports of recently viewed builds.
+     */
+    public MockLogReportController(@NotNull SBuildServer server,
+                                   @NotNull WebControllerManager controllerManager,
+                                   @NotNull PluginDescriptor pluginDescriptor,
+                                   @NotNull MockLogReportCache reportCache) {
+        super(server);
+        this.server = server;
+        this.pluginDescriptor = pluginDescriptor;
+        this.reportCache = reportCache;
+        controllerManager.registerController(MockConstants.REPORT_CONTROLLER_PATH, this);
+    }
+
+    /**
+     * Render one page of the clusters of a log.
+     *
+     * @param request  the HTTP request object.
+     * @param response the HTTP response object.
+     *
+     * @return the page fragment, or null if an error was sent instead.
+     * @throws Exception
+     */
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request,
+                                    @NotNull HttpServletResponse response) throws Exception {
+        long buildId;
+        int page;
+        try {
+            buildId = Long.parseLong(request.getParameter("buildId"));
+            String pageParameter = request.getParameter("page");
+            page = pageParameter != null ? Math.max(0, Integer.parseInt(pageParameter)) : 0;
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid build ID or page");
+            return null;
+        }
+
+        SBuild build = server.findBuildInstanceById(buildId);
+        if (build == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such build: " + buildId);
+            return null;
+        }
+
+        SUser user = SessionUser.getUser(request);
+        if (user == null || !user.isPermissionGrantedForProject(build.getProjectId(), Permission.VIEW_PROJECT)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Not allowed to view build: " + buildId);
+            return null;
+        }
+
+        String chrootName = request.getParameter("chroot");
+        String logName = request.getParameter("log");
+        MockLogReport report = null;
+        for (MockLogReport candidate : reportCache.getReports(build)) {
+            if (candidate.getName().equals(chrootName)) {
+                report = candidate;
+            }
+        }
+
+        int clusterCount = report != null ? report.getClusterCount(logName) : -1;
+        if (clusterCount < 0) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such log: " + chrootName + "/" + logName);
+            return null;
+        }
+
+        // Computed as a long, so that a huge page number yields an empty page rather than overflowing
+        long first = (long) page * MockConstants.REPORT_PAGE_SIZE;
+        ModelAndView modelAndView = new ModelAndView(pluginDescriptor.getPluginResourcesPath("mockLogReportPage.jsp"));
+        modelAndView.getModel().put("clusters", report.getClusters(logName, (int) Math.min(first, clusterCount),
+                MockConstants.REPORT_PAGE_SIZE));
+        modelAndView.getModel().put("clusterCount", clusterCount);
+        modelAndView.getModel().put("nextPage", first + MockConstants.REPORT_PAGE_SIZE < clusterCount ? page + 1 : -1);
+        return modelAndView;
+    }
+}
@@ -21,7 +21,6 @@
 package ch.cern.dss.teamcity.server;
 
 import ch.cern.dss.teamcity.common.MockConstants;
-import ch.cern.dss.teamcity.common.Util;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SBuildServer;
@@ -32,24 +31,26 @@ import org.jetbrains.annotations.NotNull;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class MockLogReportTab extends ViewLogTab {
 
+    private final MockLogReportCache reportCache;
+
     /**
      * @param pagePlaces       the object with which we register this page extension.
      * @param server           the build server object.
      * @param pluginDescriptor the plugin descriptor used to get base path to JSP files.
+     * @param reportCache      the cache of the reports of recently viewed builds.
      */
     public MockLogReportTab(@NotNull PagePlaces pagePlaces,
                             @NotNull SBuildServer server,
-                            @NotNull PluginDescriptor pluginDescriptor) {
+                            @NotNull PluginDescriptor pluginDescriptor,
+                            @NotNull MockLogReportCache reportCache) {
         super(MockConstants.TAB_TITLE, MockConstants.TAB_ID, pagePlaces, server);
+        this.reportCache = reportCache;
         setIncludeUrl(pluginDescriptor.getPluginResourcesPath() + "mockLogReport.jsp");
     }
 
@@ -65,90 +66,74 @@ public class MockLogReportTab extends ViewLogTab {
                              @NotNull HttpServletRequest request,
                              @NotNull SBuild build) {
         try {
-            List<MockLogReport> reports = getReports(build);
+            List<MockLogReport> reports = reportCache.getReports(build);
             model.put("reports", reports);
+            model.put("timeline", new MockTimeline(reports));
+            model.put("buildId", build.getBuildId());
         } catch (IOException e) {
             Loggers.SERVER.error("Error filling report tab model: " + e.getMessage());
         }
     }
 
     /**
-     * Get the processed reports for each chroot, in a format easily parsable within JSP.
+     * Perform checks to see whether this page is available to be displayed or not.
      *
-     * @param build the current build being viewed.
+     * @param request the HTTP request object.
+     * @param build   the current build.
      *
-     * @return the data structure holding the processed report information.
-     * @throws IOException
+     * @return true if the page is available, false otherwise.
      */
-    private List<MockLogReport> getReports(SBuild build) throws IOException {
-        List<MockLogReport> reports = new ArrayList<MockLogReport>();
-
-        for (Map.Entry<String, Map<String, String>> e : getLogFiles(build).entrySet()) {
-            reports.add(new MockLogReport(e.getKey(), e.getValue()));
+    @Override
+    protected boolean isAvailable(@NotNull HttpServletRequest request, @NotNull SBuild build) {
+        // Stop at the first log directory, in the chroot directory or in one of its macro set directories
+        File[] chrootDirectories = build.getArtifactsDirectory().listFiles();
+        if (chrootDirectories == null) {
+            return false;
         }
 
-        return reports;
-    }
-
-    /**
-     * Get a list of all mock build log files within the artifacts of this build.
-     *
-     * @param build the current build being viewed.
-     *
-     * @return a map of chroot names : build log files.
-     * @throws IOException
-     */
-    private Map<String, Map<String, String>> getLogFiles(SBuild build) throws IOException {
-        Map<String, Map<String, String>> logFiles = new HashMap<String, Map<String, String>>();
-
-        File[] chrootDirectories = build.getArtifactsDirectory().listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return new File(dir, name).isDirectory();
+        for (File chrootDirectory : chrootDirectories) {
+            if (hasMockLogs(new File(chrootDirectory, "logs"))) {
+                return true;
             }
-        });
 
-        if (chrootDirectories != null && chrootDirectories.length > 0) {
-            for (File chrootDirectory : chrootDirectories) {
-                File[] logDirectory = chrootDirectory.listFiles(new FilenameFilter() {
-                    @Override
-                    public boolean accept(File dir, String name) {
-                        return new File(dir, name).isDirectory() && name.equals("logs");
+            File[] macroSetDirectories = chrootDirectory.listFiles();
+            if (macroSetDirectories != null) {
+                for (File macroSetDirectory : macroSetDirectories) {
+                    if (hasMockLogs(new File(macroSetDirectory, "logs"))) {
+                        return true;
                     }
-                });
-
-                if (logDirectory != null && logDirectory.length > 0) {
-                    File buildLogFile = new File(logDirectory[0], "build.log");
-                    File stateLogFile = new File(logDirectory[0], "state.log");
-                    File rootLogFile = new File(logDirectory[0], "root.log");
-
-                    Map<String, String> logFileMap = new HashMap<String, String>();
-                    logFileMap.put(buildLogFile.getName(), Util.readFile(buildLogFile.getAbsolutePath()));
-                    logFileMap.put(stateLogFile.getName(), Util.readFile(stateLogFile.getAbsolutePath()));
-                    logFileMap.put(rootLogFile.getName(), Util.readFile(rootLogFile.getAbsolutePath()));
-
-                    logFiles.put(chrootDirectory.getName(), logFileMap);
                 }
             }
         }
-
-        return logFiles;
+        return false;
     }
 
     /**
-     * Perform checks to see whether this page is available to be displayed or not.
+     * Other runners may publish a "logs" directory too, so only count it if it holds a mock build log or log summary,
+     * directly or in a package subdirectory.
      *
-     * @param request the HTTP request object.
-     * @param build   the current build.
+     * @param logDirectory a candidate log directory.
      *
-     * @return true if the page is available, false otherwise.
+     * @return true if it holds mock logs.
      */
-    @Override
-    protected boolean isAvailable(@NotNull HttpServletRequest request, @NotNull SBuild build) {
-        try {
-            return !getLogFiles(build).isEmpty();
-        } catch (IOException e) {
-            return false;
+    private static boolean hasMockLogs(File logDirectory) {
+        if (isMockLogDirectory(logDirectory)) {
+            return true;
+        }
+
+        File[] packageDirectories = logDirectory.listFiles();
+        if (packageDirectories != null) {
+            for (File packageDirectory : packageDirectories) {
+                if (isMockLogDirectory(packageDirectory)) {
+                    return true;
+                }
+            }
         }
+        return false;
+    }
+
+    private static boolean isMockLogDirectory(File directory) {
+        return new File(directory, "build.log").isFile()
+                || new File(directory, MockConstants.LOG_SUMMARY_FILE).isFile();
     }
 }
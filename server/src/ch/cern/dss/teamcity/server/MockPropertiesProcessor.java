@@ -21,13 +21,12 @@
 package ch.cern.dss.teamcity.server;
 
 import ch.cern.dss.teamcity.common.MockConstants;
+import ch.cern.dss.teamcity.common.RpmMacroSet;
 import jetbrains.buildServer.serverSide.InvalidProperty;
 import jetbrains.buildServer.serverSide.PropertiesProcessor;
 import jetbrains.buildServer.util.PropertiesUtil;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Map;
+import java.util.*;
 
 public class MockPropertiesProcessor implements PropertiesProcessor {
 
@@ -59,13 +58,76 @@ public class MockPropertiesProcessor implements PropertiesProcessor {
         }
 
         if (!PropertiesUtil.isEmptyOrNull(properties.get(MockConstants.RPM_MACROS))) {
-            String rpmMacros = properties.get(MockConstants.RPM_MACROS);
-            if (!rpmMacros.startsWith("--define=")) {
-                result.add(new InvalidProperty(MockConstants.RPM_MACROS,
-                        "RPM macro \"" + rpmMacros + "\" invalid (must begin with \"--define=\")"));
+            Set<String> names = new HashSet<String>();
+            List<RpmMacroSet> macroSets;
+            try {
+                macroSets = RpmMacroSet.parse(properties.get(MockConstants.RPM_MACROS));
+            } catch (IllegalArgumentException e) {
+                result.add(new InvalidProperty(MockConstants.RPM_MACROS, e.getMessage()));
+                macroSets = Collections.emptyList();
+            }
+            for (RpmMacroSet macroSet : macroSets) {
+                String rpmMacros = macroSet.getMacros();
+                if (rpmMacros != null && !rpmMacros.startsWith("--define=")) {
+                    result.add(new InvalidProperty(MockConstants.RPM_MACROS,
+                            "RPM macro \"" + rpmMacros + "\" invalid (must begin with \"--define=\")"));
+                }
+                if (macroSet.getName() != null && !names.add(macroSet.getName())) {
+                    result.add(new InvalidProperty(MockConstants.RPM_MACROS,
+                            "RPM macro set \"" + macroSet.getName() + "\" defined more than once"));
+                }
+            }
+        }
+
+        if (!PropertiesUtil.isEmptyOrNull(properties.get(MockConstants.BUILD_MODE))) {
+            String buildMode = properties.get(MockConstants.BUILD_MODE);
+            if (!buildMode.equals(MockConstants.BUILD_MODE_PARALLEL) && !buildMode.equals(MockConstants.BUILD_MODE_CHAIN)) {
+                result.add(new InvalidProperty(MockConstants.BUILD_MODE, "Unknown build mode \"" + buildMode + "\""));
+            }
+        }
+
+        if (!PropertiesUtil.isEmptyOrNull(properties.get(MockConstants.TMPFS_SIZE))) {
+            String size = properties.get(MockConstants.TMPFS_SIZE).trim();
+            if (!isPositiveInteger(size)) {
+                result.add(new InvalidProperty(MockConstants.TMPFS_SIZE,
+                        "tmpfs size \"" + size + "\" invalid (must be a positive number of MB)"));
+            }
+        }
+
+        if (!PropertiesUtil.isEmptyOrNull(properties.get(MockConstants.PRIORITY))) {
+            String priority = properties.get(MockConstants.PRIORITY).trim();
+            try {
+                Integer.parseInt(priority);
+            } catch (NumberFormatException e) {
+                result.add(new InvalidProperty(MockConstants.PRIORITY,
+                        "Priority \"" + priority + "\" invalid (must be an integer)"));
+            }
+        }
+
+        for (String key : new String[]{MockConstants.INIT_TIMEOUT, MockConstants.REBUILD_TIMEOUT,
+                MockConstants.PUBLISH_TIMEOUT, MockConstants.NO_OUTPUT_TIMEOUT}) {
+            if (!PropertiesUtil.isEmptyOrNull(properties.get(key))) {
+                String timeout = properties.get(key).trim();
+                if (!isPositiveInteger(timeout)) {
+                    result.add(new InvalidProperty(key,
+                            "Timeout \"" + timeout + "\" invalid (must be a positive number of minutes)"));
+                }
             }
         }
 
         return result;
     }
+
+    /**
+     * @param value the string to check.
+     *
+     * @return true if the string is a positive integer, false otherwise.
+     */
+    private boolean isPositiveInteger(String value) {
+        try {
+            return Integer.parseInt(value) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 }
@@ -103,6 +103,7 @@ public class MockRunType extends RunType {
     public Map<String, String> getDefaultRunnerProperties() {
         Map<String, String> defaults = new HashMap<String, String>();
         defaults.put(MockConstants.CONFIG_DIR, MockConstants.DEFAULT_CONFIG_DIR);
+        defaults.put(MockConstants.BUILD_MODE, MockConstants.BUILD_MODE_PARALLEL);
         return defaults;
     }
 
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.server;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A stage of a mock build (e.g. "chroot init" or "rpmbuild foo-1.0-1.src.rpm"), as recorded in mock's state.log.
+ */
+public class MockStage {
+
+    private static final Pattern STATE_LINE = Pattern.compile(
+            "^(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2},\\d{3}) - (Start|Finish|State Changed): (.*)$");
+
+    private final String name;
+    private final long start;
+    private long end;
+    private boolean leaf = true;
+
+    public MockStage(String name, long start, long end) {
+        this.name = name;
+        this.start = start;
+        this.end = end;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the start time, in milliseconds since the epoch.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return the end time, in milliseconds since the epoch.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public long getDuration() {
+        return end - start;
+    }
+
+    /**
+     * @return true if no other stage was recorded within this one.
+     */
+    public boolean isLeaf() {
+        return leaf;
+    }
+
+    /**
+     * Parse the stages out of a state.log. Newer versions of mock record the start and finish of each stage, and
+     * nest them ("Start: run" ... "Finish: run"); older versions only record each change of state, in which case a
+     * stage lasts until the next one starts.
+     *
+     * @param stateLog the contents of state.log.
+     *
+     * @return the stages in order of their start time. Stages which never finished end at the last recorded time.
+     */
+    public static List<MockStage> parse(String stateLog) {
+        List<MockStage> stages = new ArrayList<MockStage>();
+        List<MockStage> open = new ArrayList<MockStage>();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+        long last = 0;
+
+        for (String line : stateLog.split("\n")) {
+            Matcher matcher = STATE_LINE.matcher(line.trim());
+            if (!matcher.matches()) {
+                continue;
+            }
+
+            long time;
+            try {
+                time = format.parse(matcher.group(1)).getTime();
+            } catch (ParseException e) {
+                continue;
+            }
+            last = time;
+            String event = matcher.group(2);
+            String name = matcher.group(3).trim();
+
+            if (event.equals("Finish")) {
+                // Close the innermost open stage of that name
+                for (int i = open.size() - 1; i >= 0; i--) {
+                    if (open.get(i).name.equals(name)) {
+                        open.remove(i).end = time;
+                        break;
+                    }
+                }
+                continue;
+            }
+
+            if (event.equals("State Changed")) {
+                for (MockStage stage : open) {
+                    stage.end = time;
+                }
+                open.clear();
+            }
+
+            for (MockStage parent : open) {
+                parent.leaf = false;
+            }
+            MockStage stage = new MockStage(name, time, time);
+            stages.add(stage);
+            open.add(stage);
+        }
+
+        for (MockStage stage : open) {
+            stage.end = last;
+        }
+        return stages;
+    }
+}
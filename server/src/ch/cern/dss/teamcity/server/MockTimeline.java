@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2012-2013 by European Organization for Nuclear Research (CERN)
+ * Author: Justin Salmon <jsalmon@cern.ch>
+ *
+ * This file is part of the Mock TeamCity plugin.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.cern.dss.teamcity.server;
+
+import java.util.*;
+
+/**
+ * The stages of every chroot's mock build on a common time axis, for display as a Gantt chart. Each row shows the
+ * innermost stages of one chroot, which follow each other without overlapping. The row which finished last is the
+ * critical path of the build.
+ */
+public class MockTimeline {
+
+    private final List<Row> rows = new ArrayList<Row>();
+    private long start = Long.MAX_VALUE;
+    private long end = Long.MIN_VALUE;
+
+    /**
+     * @param reports the reports of each chroot.
+     */
+    public MockTimeline(List<MockLogReport> reports) {
+        for (MockLogReport report : reports) {
+            if (report.getStages().isEmpty()) {
+                continue;
+            }
+            for (MockStage stage : report.getStages()) {
+                start = Math.min(start, stage.getStart());
+                end = Math.max(end, stage.getEnd());
+            }
+        }
+
+        long last = Long.MIN_VALUE;
+        Row criticalRow = null;
+        for (MockLogReport report : reports) {
+            if (report.getStages().isEmpty()) {
+                continue;
+            }
+            Row row = new Row(report.getName());
+            for (MockStage stage : report.getStages()) {
+                if (stage.isLeaf()) {
+                    row.bars.add(new Bar(stage));
+                }
+                row.end = Math.max(row.end, stage.getEnd());
+                row.start = Math.min(row.start, stage.getStart());
+            }
+            if (row.end > last) {
+                last = row.end;
+                criticalRow = row;
+            }
+            rows.add(row);
+        }
+
+        if (criticalRow != null) {
+            criticalRow.critical = true;
+        }
+
+        // In the order the chroots started, so that waits in the queue show up as a staircase
+        Collections.sort(rows, new Comparator<Row>() {
+            @Override
+            public int compare(Row first, Row second) {
+                return first.start < second.start ? -1 : (first.start == second.start ? 0 : 1);
+            }
+        });
+    }
+
+    public List<Row> getRows() {
+        return rows;
+    }
+
+    public boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    /**
+     * @return the total time from the start of the first chroot to the end of the last one.
+     */
+    public String getDuration() {
+        return formatDuration(end - start);
+    }
+
+    private String percentage(long time) {
+        return String.format(Locale.US, "%.2f", end > start ? 100.0 * time / (end - start) : 0.0);
+    }
+
+    private static String formatDuration(long milliseconds) {
+        long seconds = milliseconds / 1000;
+        return seconds >= 60 ? seconds / 60 + "m " + seconds % 60 + "s" : seconds + "s";
+    }
+
+    /**
+     * The stages of a single chroot.
+     */
+    public class Row {
+
+        private final String name;
+        private final List<Bar> bars = new ArrayList<Bar>();
+        private long start = Long.MAX_VALUE;
+        private long end = Long.MIN_VALUE;
+        private boolean critical = false;
+
+        Row(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Bar> getBars() {
+            return bars;
+        }
+
+        public String getDuration() {
+            return formatDuration(end - start);
+        }
+
+        /**
+         * @return true if this chroot finished last, so that it determined the length of the build.
+         */
+        public boolean isCritical() {
+            return critical;
+        }
+    }
+
+    /**
+     * A single stage, positioned on the time axis.
+     */
+    public class Bar {
+
+        private final MockStage stage;
+
+        Bar(MockStage stage) {
+            this.stage = stage;
+        }
+
+        public String getName() {
+            return stage.getName();
+        }
+
+        /**
+         * @return the kind of stage, for styling: the first word of its name, e.g. "rpmbuild".
+         */
+        public String getKind() {
+            return stage.getName().split("\\s+")[0].replaceAll("[^A-Za-z0-9_-]", "");
+        }
+
+        public String getDuration() {
+            return formatDuration(stage.getDuration());
+        }
+
+        /**
+         * @return the offset of the start of the stage from the start of the timeline, in percent.
+         */
+        public String getLeft() {
+            return percentage(stage.getStart() - start);
+        }
+
+        /**
+         * @return the length of the stage relative to the whole timeline, in percent.
+         */
+        public String getWidth() {
+            return percentage(stage.getDuration());
+        }
+    }
+}